@@ -0,0 +1,203 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The length-prefixed binary encoding of ops, negotiated per connection in the HELLO handshake
+ * Each frame is a 4-byte big-endian length (of what follows), an opcode byte, and then:
+ *   CREATE   shape
+ *   ADD      id, shape
+ *   MOVE     id, dx, dy
+ *   RECOLOR  id, rgb
+ *   DELETE   id
+ *   CLEAR    nothing
+ *   SYNC     epoch, seq (8 bytes), time (8 bytes)
+ *   VIEW     x1, y1, x2, y2
+ *   LEAVE    id
+ * with every other number a 4-byte int, and shapes written by Shape.writeBinary
+ */
+public class BinaryProtocol {
+	// opcodes
+	public static final byte CREATE = 1;
+	public static final byte ADD = 2;
+	public static final byte MOVE = 3;
+	public static final byte RECOLOR = 4;
+	public static final byte DELETE = 5;
+	public static final byte CLEAR = 6;
+	public static final byte SYNC = 7;
+	public static final byte VIEW = 8;
+	public static final byte LEAVE = 9;
+
+	// shape types
+	public static final byte ELLIPSE = 1;
+	public static final byte RECTANGLE = 2;
+	public static final byte SEGMENT = 3;
+	public static final byte POLYLINE = 4;
+
+	public static final int MAX_FRAME = 1 << 20;		// longest frame body accepted, so a bad length can't make us allocate without bound
+
+	/**
+	 * Encodes an op as one frame, or a BATCH as its frames back to back
+	 */
+	public static byte[] encode(Op op) {
+		ByteBuffer buf = ByteBuffer.allocate(encodedSize(op));
+		write(op, buf);
+		return buf.array();
+	}
+
+	/**
+	 * @return how many bytes encode will produce for the op
+	 */
+	public static int encodedSize(Op op) {
+		switch (op.getType()) {
+			case CREATE:
+				return 4 + 1 + op.getShape().binarySize();
+			case ADD:
+				return 4 + 1 + 4 + op.getShape().binarySize();
+			case MOVE:
+				return 4 + 1 + 12;
+			case RECOLOR:
+				return 4 + 1 + 8;
+			case DELETE:
+				return 4 + 1 + 4;
+			case CLEAR:
+				return 4 + 1;
+			case SYNC:
+				return 4 + 1 + 4 + 8 + 8;
+			case VIEW:
+				return 4 + 1 + 16;
+			case LEAVE:
+				return 4 + 1 + 4;
+			case BATCH:
+				int size = 0;
+				for (Op inner : op.getOps()) size += inner.toBinary().length;
+				return size;
+		}
+		throw new IllegalArgumentException("no binary encoding for " + op.getType());
+	}
+
+	/**
+	 * Writes the op's frame(s) into the buffer
+	 */
+	private static void write(Op op, ByteBuffer buf) {
+		if (op.getType() == Op.Type.BATCH) {
+			for (Op inner : op.getOps()) buf.put(inner.toBinary());
+			return;
+		}
+		buf.putInt(encodedSize(op) - 4);
+		switch (op.getType()) {
+			case CREATE:
+				buf.put(CREATE);
+				op.getShape().writeBinary(buf);
+				break;
+			case ADD:
+				buf.put(ADD);
+				buf.putInt(op.getId());
+				op.getShape().writeBinary(buf);
+				break;
+			case MOVE:
+				buf.put(MOVE);
+				buf.putInt(op.getId());
+				buf.putInt(op.getDx());
+				buf.putInt(op.getDy());
+				break;
+			case RECOLOR:
+				buf.put(RECOLOR);
+				buf.putInt(op.getId());
+				buf.putInt(op.getColor());
+				break;
+			case DELETE:
+				buf.put(DELETE);
+				buf.putInt(op.getId());
+				break;
+			case CLEAR:
+				buf.put(CLEAR);
+				break;
+			case SYNC:
+				buf.put(SYNC);
+				buf.putInt(op.getEpoch());
+				buf.putLong(op.getSeq());
+				buf.putLong(op.getTime());
+				break;
+			case VIEW:
+				buf.put(VIEW);
+				Bounds area = op.getArea();
+				buf.putInt(area.x1);
+				buf.putInt(area.y1);
+				buf.putInt(area.x2);
+				buf.putInt(area.y2);
+				break;
+			case LEAVE:
+				buf.put(LEAVE);
+				buf.putInt(op.getId());
+				break;
+		}
+	}
+
+	/**
+	 * Decodes the body of one frame (everything after the length)
+	 * @return the op, or null for an unknown opcode
+	 */
+	public static Op decode(ByteBuffer frame) {
+		switch (frame.get()) {
+			case CREATE:
+				return Op.create(Sketch.readBinaryShape(frame));
+			case ADD:
+				int id = frame.getInt();
+				return Op.received(id, Sketch.readBinaryShape(frame));
+			case MOVE:
+				return Op.move(frame.getInt(), frame.getInt(), frame.getInt());
+			case RECOLOR:
+				return Op.recolor(frame.getInt(), frame.getInt());
+			case DELETE:
+				return Op.delete(frame.getInt());
+			case CLEAR:
+				return Op.clear();
+			case SYNC:
+				return Op.sync(frame.getInt(), frame.getLong(), frame.getLong());
+			case VIEW:
+				return Op.view(new Bounds(frame.getInt(), frame.getInt(), frame.getInt(), frame.getInt()));
+			case LEAVE:
+				return Op.leave(frame.getInt());
+		}
+		return null;
+	}
+
+	/**
+	 * Reads and decodes frames from a stream, through one reusable buffer
+	 */
+	public static class Reader {
+		private DataInputStream in;
+		private ByteBuffer frame;		// body of the last frame read
+
+		public Reader(InputStream in) {
+			this.in = new DataInputStream(in);
+			frame = ByteBuffer.allocate(8192);
+		}
+
+		/**
+		 * Reads and decodes the next frame
+		 * @return the op (null for an unknown opcode)
+		 * @throws EOFException when the stream ends between frames
+		 * @throws IOException also when a frame's length is out of range
+		 */
+		public Op read() throws IOException {
+			int length = in.readInt();
+			if (length < 1 || length > MAX_FRAME) throw new IOException("bad frame length " + length);
+			if (frame.capacity() < length) frame = ByteBuffer.allocate(Math.max(length, frame.capacity() * 2));
+			frame.clear();
+			in.readFully(frame.array(), 0, length);
+			frame.limit(length);
+			return decode(frame);
+		}
+
+		/**
+		 * @return whether there is more input to be had without blocking
+		 */
+		public boolean ready() throws IOException {
+			return in.available() > 0;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * An axis-aligned box on the board, corners included, that never changes once made
+ * (the shapes' bounds, and the part of the board a client is looking at)
+ */
+public class Bounds {
+	public final int x1, y1, x2, y2;		// upper left and lower right, x1 <= x2 and y1 <= y2
+
+	/**
+	 * The box with corners at the two points, in either order
+	 */
+	public Bounds(int x1, int y1, int x2, int y2) {
+		this.x1 = Math.min(x1, x2);
+		this.y1 = Math.min(y1, y2);
+		this.x2 = Math.max(x1, x2);
+		this.y2 = Math.max(y1, y2);
+	}
+
+	/**
+	 * The box a point is in, grown by pad on every side (e.g. a segment's endpoints, with the room to click near it)
+	 */
+	public static Bounds around(int x, int y, int pad) {
+		return new Bounds(x - pad, y - pad, x + pad, y + pad);
+	}
+
+	public boolean intersects(Bounds other) {
+		return x1 <= other.x2 && other.x1 <= x2 && y1 <= other.y2 && other.y1 <= y2;
+	}
+
+	public boolean contains(int x, int y) {
+		return x1 <= x && x <= x2 && y1 <= y && y <= y2;
+	}
+
+	/**
+	 * @return the box moved by dx, dy
+	 */
+	public Bounds translate(int dx, int dy) {
+		return new Bounds(x1 + dx, y1 + dy, x2 + dx, y2 + dy);
+	}
+
+	/**
+	 * @return the smallest box around both
+	 */
+	public Bounds union(Bounds other) {
+		return new Bounds(Math.min(x1, other.x1), Math.min(y1, other.y1), Math.max(x2, other.x2), Math.max(y2, other.y2));
+	}
+
+	/**
+	 * Parses "x1,y1,x2,y2", as a client gives its view in HELLO
+	 * @return the box, or null if that isn't one
+	 */
+	public static Bounds parse(String text) {
+		if (text == null) return null;
+		String[] parts = text.split(",");
+		if (parts.length != 4) return null;
+		try {
+			return new Bounds(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()),
+					Integer.parseInt(parts[2].trim()), Integer.parseInt(parts[3].trim()));
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof Bounds)) return false;
+		Bounds b = (Bounds) other;
+		return x1 == b.x1 && y1 == b.y1 && x2 == b.x2 && y2 == b.y2;
+	}
+
+	@Override
+	public int hashCode() {
+		return ((x1 * 31 + y1) * 31 + x2) * 31 + y2;
+	}
+
+	@Override
+	public String toString() {
+		return x1 + "," + y1 + "," + x2 + "," + y2;
+	}
+}
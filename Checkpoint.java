@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The whole sketch at one version, saved so a restart only needs to replay the edits since
+ * Layout: magic, format, version (long), last ID, shape count, then per shape its ID followed by
+ * Shape.writeBinary, and the magic again at the end; written and read through a memory-mapped file
+ */
+public class Checkpoint {
+	private static final int MAGIC = 0x534b4350;		// "SKCP"
+	private static final int FORMAT = 1;
+	private static final int HEADER = 4 + 4 + 8 + 4 + 4;
+
+	private final PersistentIntMap<Shape> shapes;
+	private final long version;
+	private final int lastId;
+
+	private Checkpoint(PersistentIntMap<Shape> shapes, long version, int lastId) {
+		this.shapes = shapes;
+		this.version = version;
+		this.lastId = lastId;
+	}
+
+	public PersistentIntMap<Shape> getShapes() {
+		return shapes;
+	}
+
+	/**
+	 * @return how many edits the checkpoint includes
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public int getLastId() {
+		return lastId;
+	}
+
+	/**
+	 * Writes a version of the sketch to the path, through a temporary file moved into place once it is
+	 * on disk, so there is never a half-written checkpoint under that name
+	 * Returns once the new name is on disk too, so the files it makes redundant can then be deleted
+	 */
+	public static void write(Path path, PersistentIntMap<Shape> shapes, long version, int lastId) throws IOException {
+		long size = HEADER + 4;
+		for (PersistentIntMap.Node<Shape> entry : shapes.entries()) size += 4 + entry.getValue().binarySize();
+		if (size > Integer.MAX_VALUE) throw new IOException("sketch too big for one checkpoint");
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			buf.putInt(MAGIC).putInt(FORMAT).putLong(version).putInt(lastId).putInt(shapes.size());
+			for (PersistentIntMap.Node<Shape> entry : shapes.entries()) {
+				buf.putInt(entry.getKey());
+				entry.getValue().writeBinary(buf);
+			}
+			buf.putInt(MAGIC);
+			buf.force();
+		}
+		Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		forceDirectory(path.toAbsolutePath().getParent());
+	}
+
+	/**
+	 * Flushes a directory's entries to disk, so a file just created or renamed in it is still there after a power loss
+	 */
+	public static void forceDirectory(Path dir) throws IOException {
+		try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Maps the checkpoint at the path and decodes its shapes, building the sketch's map in one pass
+	 */
+	public static Checkpoint read(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buf.remaining() < HEADER + 4 || buf.getInt() != MAGIC || buf.getInt() != FORMAT) {
+				throw new IOException(path + " is not a sketch checkpoint");
+			}
+			long version = buf.getLong();
+			int lastId = buf.getInt();
+			int n = buf.getInt();
+			int[] ids = new int[n];
+			Shape[] shapes = new Shape[n];
+			for (int i = 0; i < n; i++) {
+				ids[i] = buf.getInt();
+				shapes[i] = Sketch.readBinaryShape(buf);
+				if (shapes[i] == null) throw new IOException(path + " is damaged");
+			}
+			if (buf.getInt() != MAGIC) throw new IOException(path + " is damaged");
+			return new Checkpoint(PersistentIntMap.fromSorted(ids, shapes, n), version, lastId);
+		}
+		catch (RuntimeException e) {
+			// e.g. running off the end of a damaged file
+			throw new IOException(path + " is damaged", e);
+		}
+	}
+}
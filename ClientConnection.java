@@ -0,0 +1,31 @@
+/**
+ * One client connected to the SketchServer, whichever way its socket is being served
+ * (a SketchServerCommunicator thread, or a channel on a SketchServerEventLoop)
+ */
+public interface ClientConnection {
+	/**
+	 * Queues an op for the client; never blocks on the client's socket
+	 */
+	public void send(Op op);
+
+	/**
+	 * @return how many ops are queued for the client but not yet written
+	 */
+	public int getQueueDepth();
+
+	/**
+	 * @return something to identify the client by in logs
+	 */
+	public String getName();
+
+	/**
+	 * @return how far the client is in getting the world, and what part of it it is looking at
+	 */
+	public SnapshotStream getSnapshot();
+
+	/**
+	 * Hangs up on the client; may be called from any thread, and never waits on the room's pipeline,
+	 * as its fan-out stages call this too
+	 */
+	public void close();
+}
@@ -0,0 +1,235 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Cursor-based tokenizer for the text protocol, shared by the server and the editor
+ * It reads lines into one reusable buffer and parses opcodes, IDs, deltas, colors and
+ * point lists straight out of it into primitives, so handling a command doesn't create
+ * any intermediate Strings or arrays (only the Op and Shape it describes)
+ */
+public class CommandDecoder {
+	private static final byte[][] OPCODES = {
+			"CREATE".getBytes(), "ADD".getBytes(), "MOVE".getBytes(),
+			"RECOLOR".getBytes(), "DELETE".getBytes(), "CLEAR".getBytes(), "SYNC".getBytes(),
+			"VIEW".getBytes(), "LEAVE".getBytes()
+	};
+	private static final byte[] OPCODE_VALUES = {
+			BinaryProtocol.CREATE, BinaryProtocol.ADD, BinaryProtocol.MOVE,
+			BinaryProtocol.RECOLOR, BinaryProtocol.DELETE, BinaryProtocol.CLEAR, BinaryProtocol.SYNC,
+			BinaryProtocol.VIEW, BinaryProtocol.LEAVE
+	};
+	private static final byte[][] SHAPE_TYPES = {
+			"ellipse".getBytes(), "rectangle".getBytes(), "segment".getBytes(), "polyline".getBytes()
+	};
+	private static final byte[] SHAPE_TYPE_VALUES = {
+			BinaryProtocol.ELLIPSE, BinaryProtocol.RECTANGLE, BinaryProtocol.SEGMENT, BinaryProtocol.POLYLINE
+	};
+
+	private InputStream source;		// where lines come from, if reading a stream
+	private byte[] buf;				// read buffer (or the caller's bytes, after reset)
+	private int filled;				// how much of buf holds data
+	private int lineStart, lineEnd;	// current line, without its newline
+	private int next;				// where the line after the current one starts
+	private int pos;				// cursor within the current line
+	private int[] ints;				// scratch for readInts, reused across commands
+
+	/**
+	 * A decoder for single commands given to reset
+	 */
+	public CommandDecoder() {
+		ints = new int[64];
+	}
+
+	/**
+	 * A decoder reading lines from the stream with nextLine
+	 */
+	public CommandDecoder(InputStream source) {
+		this();
+		this.source = source;
+		buf = new byte[8192];
+	}
+
+	/**
+	 * Makes the bytes from..to (exclusive, no newline) the current line
+	 * The bytes are not copied, so they must not change while being decoded
+	 */
+	public CommandDecoder reset(byte[] bytes, int from, int to) {
+		buf = bytes;
+		filled = to;
+		lineStart = pos = from;
+		lineEnd = next = to;
+		return this;
+	}
+
+	/**
+	 * Makes the string the current line
+	 */
+	public CommandDecoder reset(String command) {
+		byte[] bytes = command.getBytes(StandardCharsets.UTF_8);
+		return reset(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Advances to the next line of the stream, reading more from it if needed
+	 * @return false at the end of the stream
+	 */
+	public boolean nextLine() throws IOException {
+		int scan = next;
+		while (true) {
+			for (int i = scan; i < filled; i++) {
+				if (buf[i] == '\n') {
+					lineStart = pos = next;
+					lineEnd = (i > next && buf[i - 1] == '\r') ? i - 1 : i;
+					next = i + 1;
+					return true;
+				}
+			}
+			// no full line yet: move the partial one to the front, making room if need be, and read more
+			int partial = filled - next;
+			if (next > 0) {
+				System.arraycopy(buf, next, buf, 0, partial);
+			}
+			else if (partial == buf.length) {
+				byte[] bigger = new byte[buf.length * 2];
+				System.arraycopy(buf, 0, bigger, 0, partial);
+				buf = bigger;
+			}
+			filled = partial;
+			next = 0;
+			scan = partial;
+			int n = source.read(buf, filled, buf.length - filled);
+			if (n < 0) {
+				if (partial == 0) return false;
+				// last line, without a newline
+				lineStart = pos = 0;
+				lineEnd = next = filled;
+				return true;
+			}
+			filled += n;
+		}
+	}
+
+	/**
+	 * @return whether there is more input to be had without blocking, already buffered or waiting in the stream
+	 */
+	public boolean ready() throws IOException {
+		return next < filled || (source != null && source.available() > 0);
+	}
+
+	/**
+	 * @return the current line as a String (allocates; for logging and the handshake)
+	 */
+	public String lineString() {
+		return new String(buf, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return whether the current line is empty
+	 */
+	public boolean isEmpty() {
+		return lineEnd == lineStart;
+	}
+
+	/**
+	 * Reads the command word at the start of the line
+	 * @return the matching BinaryProtocol opcode, or 0 if it isn't one
+	 */
+	public byte opcode() {
+		int i = match(OPCODES);
+		return i < 0 ? 0 : OPCODE_VALUES[i];
+	}
+
+	/**
+	 * Reads a shape type word (e.g. "ellipse")
+	 * @return the matching BinaryProtocol shape type, or 0 if it isn't one
+	 */
+	public byte shapeType() {
+		int i = match(SHAPE_TYPES);
+		return i < 0 ? 0 : SHAPE_TYPE_VALUES[i];
+	}
+
+	/**
+	 * Reads the next space-separated word and finds it among the candidates
+	 * @return index of the match, or -1
+	 */
+	private int match(byte[][] words) {
+		skipSpaces();
+		int start = pos;
+		while (pos < lineEnd && buf[pos] != ' ' && buf[pos] != '|') pos++;
+		int length = pos - start;
+		for (int w = 0; w < words.length; w++) {
+			byte[] word = words[w];
+			if (word.length != length) continue;
+			int i = 0;
+			while (i < length && buf[start + i] == word[i]) i++;
+			if (i == length) return w;
+		}
+		return -1;
+	}
+
+	/**
+	 * Reads the next (possibly negative) decimal integer, skipping spaces and '|' before it
+	 */
+	public int nextInt() {
+		return (int) nextLong();
+	}
+
+	/**
+	 * Like nextInt, for numbers that may not fit in an int
+	 */
+	public long nextLong() {
+		while (pos < lineEnd && (buf[pos] == ' ' || buf[pos] == '|')) pos++;
+		if (pos >= lineEnd) throw new NumberFormatException("missing number");
+		boolean negative = buf[pos] == '-';
+		if (negative) pos++;
+		int start = pos;
+		long value = 0;
+		while (pos < lineEnd && buf[pos] >= '0' && buf[pos] <= '9') {
+			value = value * 10 + (buf[pos++] - '0');
+		}
+		if (pos == start) throw new NumberFormatException("bad number in " + lineString());
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Moves the cursor just past the next occurrence of c
+	 * @return false if there is none
+	 */
+	public boolean skipPast(char c) {
+		while (pos < lineEnd && buf[pos] != c) pos++;
+		if (pos >= lineEnd) return false;
+		pos++;
+		return true;
+	}
+
+	/**
+	 * Reads integers up to the next '|' (or the end of the line) into a reusable scratch array
+	 * @return how many were read; they are in ints()[0..n)
+	 */
+	public int readInts() {
+		int n = 0;
+		while (true) {
+			skipSpaces();
+			if (pos >= lineEnd || buf[pos] == '|') break;
+			if (n == ints.length) {
+				int[] bigger = new int[ints.length * 2];
+				System.arraycopy(ints, 0, bigger, 0, n);
+				ints = bigger;
+			}
+			ints[n++] = nextInt();
+		}
+		return n;
+	}
+
+	/**
+	 * @return the scratch array filled by readInts (valid until the next call)
+	 */
+	public int[] ints() {
+		return ints;
+	}
+
+	private void skipSpaces() {
+		while (pos < lineEnd && buf[pos] == ' ') pos++;
+	}
+}
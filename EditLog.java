@@ -0,0 +1,434 @@
+import java.awt.Color;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only record of every edit the sequencer has applied, so the sketch survives the server going down
+ * Kept in a directory as a run of segment files, edits-V.log holding the edits after version V, alongside
+ * checkpoints of the whole sketch, checkpoint-V.ckpt; a restart loads the latest checkpoint and replays
+ * only the edits after it, and once a checkpoint is on disk the segments before it are deleted
+ * After a short header, each record in a segment is the op's frame in the binary protocol: ADD (with the ID
+ * the server handed out, rather than the CREATE it came as), MOVE, RECOLOR or DELETE
+ * The sequencer only copies each frame into a buffer; a committer thread writes out and fsyncs everything
+ * buffered since its last fsync in one go (group commit), so a drag's worth of MOVEs costs one disk flush,
+ * not one each; clients are only sent an edit once it is on disk (see awaitDurable), so a crash never loses
+ * an edit anyone has seen, and each group of edits waits for one flush together
+ */
+public class EditLog {
+	private static final int MAGIC = 0x534b4c47;				// "SKLG"
+	private static final int VERSION = 1;
+	private static final int HEADER = 8;
+	private static final int MAX_BUFFERED = 16 * 1024 * 1024;	// the sequencer waits for the disk past this
+	private static final String SEGMENT = "edits-", SEGMENT_SUFFIX = ".log";
+	private static final String CHECKPOINT = "checkpoint-", CHECKPOINT_SUFFIX = ".ckpt";
+
+	private Path dir;
+	private Path path;							// the segment being appended to
+	private FileChannel channel;				// open on it
+	private ByteBuffer filling;					// frames appended since the committer last took them
+	private ByteBuffer writing;					// frames the committer is writing out
+	private volatile long checkpointed;			// version of the latest checkpoint
+	private long appended;						// ops appended so far
+	private volatile long durable;				// ops known to be on disk
+	private boolean committing;					// the committer is writing out a buffer
+	private boolean closed;
+	private boolean failed;						// a write failed; nothing more is logged
+	private ReentrantLock lock;
+	private Condition hasData;					// something to commit (or closed)
+	private Condition drained;					// the committer took the buffer, or finished writing it
+	private Thread committer;
+
+	/**
+	 * Opens (creating if need be) the log in the directory; call replay and then start before appending
+	 */
+	public EditLog(Path dir) throws IOException {
+		this.dir = dir;
+		Files.createDirectories(dir);
+		filling = ByteBuffer.allocate(64 * 1024);
+		writing = ByteBuffer.allocate(64 * 1024);
+		lock = new ReentrantLock();
+		hasData = lock.newCondition();
+		drained = lock.newCondition();
+	}
+
+	/**
+	 * Rebuilds the sketch: loads the latest readable checkpoint, then applies every logged op after it,
+	 * in order, restoring the shapes and the IDs handed out
+	 * A record cut short by a crash is dropped, and the segment truncated to the last whole one
+	 * Appends then go to a new segment starting at the version reached
+	 * @return the sketch's version: how many ops it has had, checkpointed or replayed
+	 */
+	public long replay(Sketch sketch) throws IOException {
+		long start = System.nanoTime();
+		long version = 0;
+		List<Long> checkpoints = list(CHECKPOINT, CHECKPOINT_SUFFIX);
+		for (int i = checkpoints.size() - 1; i >= 0; i--) {
+			Path file = checkpointPath(checkpoints.get(i));
+			try {
+				Checkpoint checkpoint = Checkpoint.read(file);
+				sketch.restore(checkpoint.getShapes(), checkpoint.getLastId());
+				version = checkpoint.getVersion();
+				double secs = (System.nanoTime() - start) / 1e9;
+				System.out.printf("loaded %d shapes from %s in %.0f ms%n", checkpoint.getShapes().size(), file, secs * 1000);
+				break;
+			}
+			catch (IOException e) {
+				System.err.println("skipping checkpoint: " + e.getMessage());
+			}
+		}
+		long replayStart = System.nanoTime();
+		checkpointed = version;
+		long ops = 0;
+		List<Long> segments = list(SEGMENT, SEGMENT_SUFFIX);
+		for (int i = 0; i < segments.size(); i++) {
+			long first = segments.get(i);
+			// wholly covered by the checkpoint
+			if (i + 1 < segments.size() && segments.get(i + 1) <= checkpointed) continue;
+			if (first > version) {
+				throw new IOException("edits " + (version + 1) + " to " + first + " are missing from " + dir);
+			}
+			long end = replaySegment(segmentPath(first), sketch, first, checkpointed);
+			ops += end - Math.max(first, Math.min(checkpointed, end));
+			version = Math.max(version, end);
+		}
+		double secs = (System.nanoTime() - replayStart) / 1e9;
+		System.out.printf("replayed %d ops from %s in %.0f ms (%.0f ops/sec)%n", ops, dir, secs * 1000, ops / Math.max(secs, 1e-9));
+		channel = openSegment(version);
+		durable = appended = version;
+		return version;
+	}
+
+	/**
+	 * Starts the log over from a sketch that didn't come from it (e.g. one replicated from another server),
+	 * instead of replaying: saves the sketch as a checkpoint at its version, deletes everything else in the
+	 * directory, and has appends go to a new segment after that version
+	 */
+	public void startAt(PersistentIntMap<Shape> shapes, long version, int lastId) throws IOException {
+		Checkpoint.write(checkpointPath(version), shapes, version, lastId);
+		checkpointed = version;
+		for (long first : list(SEGMENT, SEGMENT_SUFFIX)) Files.deleteIfExists(segmentPath(first));
+		for (long old : list(CHECKPOINT, CHECKPOINT_SUFFIX)) {
+			if (old != version) Files.deleteIfExists(checkpointPath(old));
+		}
+		channel = openSegment(version);
+		durable = appended = version;
+	}
+
+	/**
+	 * @return the version of the latest checkpoint, loaded by replay or saved since
+	 */
+	public long getCheckpointed() {
+		return checkpointed;
+	}
+
+	/**
+	 * Applies the ops in one segment that come after the checkpoint
+	 * @param first the version the segment starts after
+	 * @param checkpointed the version the sketch was loaded at, whose ops are skipped
+	 * @return the version after the segment's last op
+	 */
+	private long replaySegment(Path file, Sketch sketch, long first, long checkpointed) throws IOException {
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer buf = ByteBuffer.allocateDirect(1024 * 1024);
+			buf.limit(0);						// nothing read yet
+			readFully(in, buf, HEADER);
+			if (buf.remaining() < HEADER || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+				throw new IOException(file + " is not a sketch edit log");
+			}
+			long position = HEADER;				// end of the last whole record
+			long version = first;
+			while (true) {
+				if (buf.remaining() < 4 && !readFully(in, buf, 4)) break;
+				int length = buf.getInt(buf.position());
+				if (length < 1 || position + 4 + length > in.size()) break;		// torn
+				if (buf.remaining() < 4 + length) {
+					if (buf.capacity() < 4 + length) buf = grow(buf, 4 + length);
+					if (!readFully(in, buf, 4 + length)) break;
+				}
+				buf.getInt();
+				int end = buf.position() + length;
+				if (++version > checkpointed) apply(sketch, BinaryProtocol.decode(buf));
+				buf.position(end);
+				position += 4 + length;
+			}
+			if (position < in.size()) {
+				System.err.println("dropping " + (in.size() - position) + " bytes of a torn record at the end of " + file);
+				in.truncate(position);
+				in.force(true);
+			}
+			return version;
+		}
+	}
+
+	/**
+	 * @return the versions in the names of the directory's files of one kind, in increasing order
+	 */
+	private List<Long> list(String prefix, String suffix) throws IOException {
+		List<Long> versions = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*" + suffix)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					versions.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+				}
+				catch (NumberFormatException e) {
+					// not one of ours
+				}
+			}
+		}
+		Collections.sort(versions);
+		return versions;
+	}
+
+	private Path segmentPath(long first) {
+		return dir.resolve(SEGMENT + first + SEGMENT_SUFFIX);
+	}
+
+	private Path checkpointPath(long version) {
+		return dir.resolve(CHECKPOINT + version + CHECKPOINT_SUFFIX);
+	}
+
+	/**
+	 * Starts a new, empty segment for the edits after the version
+	 */
+	private FileChannel openSegment(long first) throws IOException {
+		path = segmentPath(first);
+		FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(MAGIC).putInt(VERSION).flip();
+		while (header.hasRemaining()) out.write(header);
+		out.force(true);
+		Checkpoint.forceDirectory(dir);
+		return out;
+	}
+
+	/**
+	 * Makes sure at least n bytes are buffered, reading more from the file after what's left
+	 * @return false if the file ends first
+	 */
+	private static boolean readFully(FileChannel in, ByteBuffer buf, int n) throws IOException {
+		buf.compact();
+		while (buf.position() < n) {
+			if (in.read(buf) < 0) {
+				buf.flip();
+				return false;
+			}
+		}
+		buf.flip();
+		return true;
+	}
+
+	private static ByteBuffer grow(ByteBuffer buf, int needed) {
+		ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(needed, buf.capacity() * 2));
+		bigger.put(buf);
+		bigger.flip();
+		return bigger;
+	}
+
+	/**
+	 * Redoes one logged op on the sketch
+	 */
+	private static void apply(Sketch sketch, Op op) {
+		if (op == null) return;
+		switch (op.getType()) {
+			case ADD:
+				sketch.restoreShape(op.getId(), op.getShape());
+				break;
+			case MOVE:
+				sketch.moveShape(op.getId(), op.getDx(), op.getDy());
+				break;
+			case RECOLOR:
+				sketch.recolorShape(op.getId(), new Color(op.getColor()));
+				break;
+			case DELETE:
+				sketch.deleteShape(op.getId());
+				break;
+		}
+	}
+
+	/**
+	 * Starts the committer thread
+	 */
+	public void start() {
+		committer = new Thread(this::commit, "sketch-log");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	/**
+	 * Adds an applied op to the log; called by the sequencer, in sequence order
+	 * Only waits if the disk has fallen a long way behind
+	 */
+	public void append(Op op) {
+		byte[] frame = op.toBinary();
+		lock.lock();
+		try {
+			if (closed || failed) return;
+			while (filling.position() >= MAX_BUFFERED) drained.awaitUninterruptibly();
+			if (filling.remaining() < frame.length) {
+				ByteBuffer bigger = ByteBuffer.allocate(Math.max(filling.capacity() * 2, filling.position() + frame.length));
+				filling.flip();
+				bigger.put(filling);
+				filling = bigger;
+			}
+			filling.put(frame);
+			appended++;
+			hasData.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the ops up to the version are on disk, for the fan-out to hold each edit back until then
+	 * Everything appended by the time the committer takes its next buffer goes out with one fsync, so a run
+	 * of edits waits once, for that flush, rather than once each
+	 * Returns at once for a version that won't be logged, as once the log has failed or closed
+	 * @return how many ops are known to be on disk, so the caller need not wait again for those
+	 */
+	public long awaitDurable(long version) {
+		long done = durable;
+		if (done >= version) return done;
+		lock.lock();
+		try {
+			while (durable < version && version <= appended && !failed) drained.awaitUninterruptibly();
+			return failed ? Long.MAX_VALUE : durable;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Committer thread: whenever there is anything buffered, takes all of it, writes it and fsyncs once
+	 */
+	private void commit() {
+		while (true) {
+			long upTo;
+			FileChannel out;
+			lock.lock();
+			try {
+				while (filling.position() == 0 && !closed) hasData.awaitUninterruptibly();
+				if (filling.position() == 0) return;
+				ByteBuffer full = filling;
+				filling = writing;
+				writing = full;
+				upTo = appended;
+				out = channel;
+				committing = true;
+				drained.signalAll();
+			}
+			finally {
+				lock.unlock();
+			}
+			try {
+				writing.flip();
+				while (writing.hasRemaining()) out.write(writing);
+				out.force(false);
+				writing.clear();
+				durable = upTo;
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				System.err.println("edit log failed; edits are no longer being saved to " + path);
+				lock.lock();
+				try {
+					failed = true;
+					committing = false;
+					filling.clear();
+					drained.signalAll();
+				}
+				finally {
+					lock.unlock();
+				}
+				return;
+			}
+			lock.lock();
+			try {
+				committing = false;
+				drained.signalAll();
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Ends the current segment and starts a new one for the edits after the version, which must be the
+	 * number appended so far; called by the sequencer, so no op lands on the wrong side of the split
+	 * Waits for what is buffered to reach the disk first, which is at most a flush or so
+	 * @return whether the log rolled, which it won't once it has failed or closed
+	 */
+	public boolean roll(long version) throws IOException {
+		lock.lock();
+		try {
+			if (closed || failed) return false;
+			while ((filling.position() > 0 || committing) && !failed) drained.awaitUninterruptibly();
+			if (failed) return false;
+			FileChannel old = channel;
+			channel = openSegment(version);
+			old.close();
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Saves a checkpoint of the sketch at the version, then deletes what it makes redundant: the segments
+	 * wholly before it, and older checkpoints
+	 * Takes as long as writing out the whole sketch, so is for a background thread; the map is one
+	 * version of the sketch, which the sequencer can carry on changing meanwhile
+	 * @param version should be one the log was rolled at, so a whole number of segments can go
+	 */
+	public void checkpoint(PersistentIntMap<Shape> shapes, long version, int lastId) throws IOException {
+		long start = System.nanoTime();
+		Checkpoint.write(checkpointPath(version), shapes, version, lastId);
+		checkpointed = version;
+		int deleted = 0;
+		for (long first : list(SEGMENT, SEGMENT_SUFFIX)) {
+			if (first < version && Files.deleteIfExists(segmentPath(first))) deleted++;
+		}
+		for (long old : list(CHECKPOINT, CHECKPOINT_SUFFIX)) {
+			if (old < version) Files.deleteIfExists(checkpointPath(old));
+		}
+		double secs = (System.nanoTime() - start) / 1e9;
+		System.out.printf("checkpointed %d shapes at version %d in %.0f ms, dropping %d log segments%n",
+				shapes.size(), version, secs * 1000, deleted);
+	}
+
+	/**
+	 * Writes out whatever is still buffered and closes the file
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			hasData.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+		try {
+			if (committer != null) committer.join();
+			channel.close();
+		}
+		catch (InterruptedException | IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -18,8 +18,13 @@ public class Editor extends JFrame {
 	private static String serverIP = "localhost";			// IP address of sketch server
 	// "localhost" for your own machine;
 	// or ask a friend for their IP address
+	private static boolean virtualThreads = false;			// run the communicator on a virtual thread
+	private static long batchWindow = 0;					// ms to batch outgoing messages for (0 = send right away)
+	private static String proto = "binary";					// protocol to ask the server for
+	private static String room = null;						// which of the server's sketches to join (null = its default)
 
 	private static final int width = 800, height = 800;		// canvas size
+	private static final int pan = 100;						// how far an arrow key moves the view
 
 	// Current settings on GUI
 	public enum Mode {
@@ -35,9 +40,15 @@ public class Editor extends JFrame {
 	private Integer currId = null;					// current shape id (if any) being handled
 	private Sketch sketch;						// holds and handles all the completed objects
 	private int movingId = -1;					// current shape id (if any; else -1) being moved
+	private int releasedId = -1;				// shape just let go of, drawn live until its tiles have been drawn with it (else -1)
 	private Point drawFrom = null;				// where the drawing started
 	private Point moveFrom = null;				// where object is as it's being dragged
 	private Point firstMoveFrom = null;				// where object is as it starts being dragged
+	private int viewX = 0, viewY = 0;			// where on the board the canvas's upper left corner is
+	private JComponent canvas;					// showing the part of the board in view
+	private Bounds damage;						// part of the board changed since the canvas was last asked to repaint, if any
+	private boolean repaintScheduled;			// a repaint of the damage is already coming
+	private TileCache tiles = new TileCache(this::redraw);	// the sketch drawn into images, less the shape being dragged
 
 
 	// Communication
@@ -49,12 +60,14 @@ public class Editor extends JFrame {
 		sketch = new Sketch();
 
 		// Connect to server
-		comm = new EditorCommunicator(serverIP, this);
-		comm.start();
+		comm = new EditorCommunicator(serverIP, this, proto, room, getView());
+		comm.setBatchWindow(batchWindow);
+		comm.start(virtualThreads);
 
 		// Helpers to create the canvas and GUI (buttons, etc.)
-		JComponent canvas = setupCanvas();
+		canvas = setupCanvas();
 		JComponent gui = setupGUI();
+		setupPanning();
 
 		// Put the buttons and canvas together into the window
 		Container cp = getContentPane();
@@ -74,9 +87,10 @@ public class Editor extends JFrame {
 	 * Adds shape to local sketch
 	 */
 	public void addShape(int id, Shape shape) {
+		damage(sketch.getShapeById(id));
 		sketch.clientAddShape(id, shape);
 		System.out.println("adding " + shape.toString());
-		repaint();
+		damage(shape);
 	}
 
 	/**
@@ -84,8 +98,18 @@ public class Editor extends JFrame {
 	 * @param id Shape ID
 	 */
 	public void deleteShape(int id)	{
+		damage(sketch.getShapeById(id));
 		sketch.deleteShape(id);
 		System.out.println("deleting shape ID" + id);
+	}
+
+	/**
+	 * removes every shape from local sketch
+	 */
+	public void clearShapes() {
+		sketch.clear();
+		System.out.println("clearing sketch");
+		tiles.invalidateAll();
 		repaint();
 	}
 
@@ -95,9 +119,10 @@ public class Editor extends JFrame {
 	 * @param color Color to apply
 	 */
 	public void recolorShape(int id, Color color) {
-		sketch.getShapeById(id).setColor(color);
+		Shape recolored = sketch.recolorShape(id, color);
+		if (recolored == null) return;
 		System.out.println("recoloring shape ID to" + color);
-		repaint();
+		damage(recolored);
 	}
 
 	/**
@@ -109,25 +134,84 @@ public class Editor extends JFrame {
 	public void moveShape(int id, int dx, int dy) {
 		System.out.printf("moving %d %d %d \n", id, dx, dy);
 		Shape shape = sketch.getShapeById(id);
-		System.out.println(shape.toString());
-		shape.moveBy(dx, dy);
-		System.out.println(shape.toString());
-		repaint();
+		Shape moved = sketch.moveShape(id, dx, dy);
+		if (moved == null) return;
+		System.out.println(moved.toString());
+		if (currId != null && currId == id) {
+			// the shape being dragged is drawn live, not in the tiles
+			redraw(shape);
+			redraw(moved);
+		}
+		else {
+			damage(shape);
+			damage(moved);
+		}
+	}
+
+	/**
+	 * Notes that a shape in the sketch has changed: the tiles it is (or was) on need drawing again,
+	 * and that part of the canvas painting again
+	 * @param shape the shape, or null if there isn't one
+	 */
+	private void damage(Shape shape) {
+		if (shape == null) return;
+		tiles.invalidate(shape.getBounds());
+		redraw(shape);
+	}
+
+	/**
+	 * Notes that the part of the board a shape is (or was) on needs painting again, e.g. one drawn live over the tiles
+	 * All the changes made in a burst (e.g. a batch of ops from the server) are merged into one repaint,
+	 * of the area around them all, once the Swing thread is done with them
+	 * @param shape the shape, or null if there isn't one
+	 */
+	private void redraw(Shape shape) {
+		if (shape != null) redraw(shape.getBounds());
+	}
+
+	/**
+	 * Notes that an area of the board needs painting again, e.g. a tile just drawn (see redraw(Shape))
+	 */
+	private void redraw(Bounds area) {
+		damage = damage == null ? area : damage.union(area);
+		if (!repaintScheduled) {
+			repaintScheduled = true;
+			SwingUtilities.invokeLater(this::repaintDamage);
+		}
+	}
+
+	/**
+	 * Asks for the damaged part of the board to be painted again, where it is on the canvas
+	 */
+	private void repaintDamage() {
+		repaintScheduled = false;
+		if (damage == null || canvas == null) return;
+		canvas.repaint(new java.awt.Rectangle(damage.x1 - viewX, damage.y1 - viewY,
+				damage.x2 - damage.x1 + 1, damage.y2 - damage.y1 + 1));
+		damage = null;
 	}
 	private JComponent setupCanvas() {
 
 		JComponent canvas = new JComponent() {
 			public void paintComponent(Graphics g) {
 				super.paintComponent(g);
+				g.translate(-viewX, -viewY);
 				drawSketch(g);
 			}
 		};
 		
 		canvas.setPreferredSize(new Dimension(width, height));
 
+		// the server only sends what is in view, so tell it when there is more (or less) to see
+		canvas.addComponentListener(new ComponentAdapter() {
+			public void componentResized(ComponentEvent event) {
+				comm.sendView(getView());
+			}
+		});
+
 		canvas.addMouseListener(new MouseAdapter() {
 			public void mousePressed(MouseEvent event) {
-				handlePress(event.getPoint());
+				handlePress(toBoard(event.getPoint()));
 			}
 
 			public void mouseReleased(MouseEvent event) {
@@ -137,13 +221,59 @@ public class Editor extends JFrame {
 
 		canvas.addMouseMotionListener(new MouseAdapter() {
 			public void mouseDragged(MouseEvent event) {
-				handleDrag(event.getPoint());
+				handleDrag(toBoard(event.getPoint()));
 			}
 		});
 		
 		return canvas;
 	}
 
+	/**
+	 * Has the arrow keys move the view around the board, whichever part of the window has the focus
+	 */
+	private void setupPanning() {
+		InputMap keys = getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW);
+		ActionMap actions = getRootPane().getActionMap();
+		String[] names = {"LEFT", "RIGHT", "UP", "DOWN"};
+		int[][] moves = {{-pan, 0}, {pan, 0}, {0, -pan}, {0, pan}};
+		for (int i = 0; i < names.length; i++) {
+			int dx = moves[i][0], dy = moves[i][1];
+			keys.put(KeyStroke.getKeyStroke(names[i]), "pan-" + names[i]);
+			actions.put("pan-" + names[i], new AbstractAction() {
+				public void actionPerformed(ActionEvent e) {
+					panBy(dx, dy);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Moves the view, telling the server so it sends what has come into view
+	 */
+	public void panBy(int dx, int dy) {
+		viewX += dx;
+		viewY += dy;
+		comm.sendView(getView());
+		tiles.retain(getView());
+		repaint();
+	}
+
+	/**
+	 * @return the part of the board the canvas shows
+	 */
+	public Bounds getView() {
+		int w = canvas != null && canvas.getWidth() > 0 ? canvas.getWidth() : width;
+		int h = canvas != null && canvas.getHeight() > 0 ? canvas.getHeight() : height;
+		return new Bounds(viewX, viewY, viewX + w - 1, viewY + h - 1);
+	}
+
+	/**
+	 * @return where on the board a point on the canvas is
+	 */
+	private Point toBoard(Point p) {
+		return new Point(p.x + viewX, p.y + viewY);
+	}
+
 	/**
 	 * Creates a panel with all the buttons
 	 */
@@ -209,19 +339,29 @@ public class Editor extends JFrame {
 	}
 
 	/**
-	 * Draws all the shapes in the sketch,
-	 * along with the object currently being drawn in this editor (not yet part of the sketch)
+	 * Draws the sketch in the area being painted from the tile cache, which draws the tiles that have changed
+	 * again in the background and has them painted once done, then live on top of it the shape being dragged and the object currently being drawn in this editor
+	 * (not yet part of the sketch), and a shape just let go of until the tiles it is on have been drawn with it
 	 */
 	public void drawSketch(Graphics g) {
-		List<Shape> shapes = sketch.getShapesOrdered();
-		for (Shape shape: shapes) {
-			if (shape != null)
-				shape.draw(g);
+		java.awt.Rectangle clip = g.getClipBounds();
+		Bounds area = clip == null ? getView() : new Bounds(clip.x, clip.y, clip.x + clip.width - 1, clip.y + clip.height - 1);
+		// painting is on the Swing thread, which is the one that changes the sketch, so the tiles can use its index
+		tiles.paint(g, area, sketch, currId == null ? -1 : currId);
+
+		// a shape being moved is in the sketch, and is drawn from there as it moves; one being drawn isn't in it yet
+		if (currId != null) {
+			Shape dragged = sketch.getShapeById(currId);
+			if (dragged != null) dragged.draw(g);
 		}
-
-		if (curr != null) {
+		else if (curr != null) {
 			curr.draw(g);
 		}
+		if (releasedId != -1) {
+			Shape released = sketch.getShapeById(releasedId);
+			if (released == null || tiles.isDrawn(released.getBounds())) releasedId = -1;
+			else released.draw(g);
+		}
 	}
 
 
@@ -229,20 +369,12 @@ public class Editor extends JFrame {
 
 	/**
 	 * returns ID of the highest (front to back) shape drawn that's under a point
+	 * Asks the sketch's spatial index, so only the shapes near the point are checked, not every one
 	 * @param p point to check
-	 * @return ID of the shape
+	 * @return ID of the shape, or -1 if none
 	 */
 	private int getClickedShapeId(Point p) {
-		List<Integer> shapes = sketch.getShapesIdsOrdered();
-		int lastId = -1;
-		for (Integer id : shapes) {
-			Shape shape = sketch.getShapeById(id);
-			if (shape.contains(p.x, p.y)) {
-				lastId = id;
-			}
-		}
-
-		return lastId;
+		return sketch.getShapeAt(p.x, p.y);
 	}
 	
 	/**
@@ -270,6 +402,7 @@ public class Editor extends JFrame {
 						curr = new Segment(p.x, p.y, color);
 						break;
 				}
+				redraw(curr);
 				break;
 			case MOVE:
 				int shapeId = getClickedShapeId(p);
@@ -278,6 +411,8 @@ public class Editor extends JFrame {
 				firstMoveFrom = p;
 				currId = shapeId;
 				curr = sketch.getShapeById(currId);
+				// out of the tiles, to be drawn live while it is dragged
+				damage(curr);
 				break;
 			case DELETE:
 				shapeId = getClickedShapeId(p);
@@ -288,7 +423,7 @@ public class Editor extends JFrame {
 				comm.sendShapeRecolor(shapeId, color.getRGB());
 
 		}
-		repaint();
+		// moving, recoloring and deleting change nothing here until the server sends the change back
 	}
 
 	/**
@@ -299,6 +434,7 @@ public class Editor extends JFrame {
 	private void handleDrag(Point p) {
 		switch (mode) {
 			case DRAW:
+				redraw(curr);
 				switch (shapeType) {
 					case "ellipse":
 						Ellipse ell = (Ellipse) curr;
@@ -317,13 +453,13 @@ public class Editor extends JFrame {
 						seg.setEnd(p.x, p.y);
 						break;
 				}
+				redraw(curr);
 				break;
 			case MOVE:
 				if (curr == null) break;
 				comm.sendShapeMove(currId, moveFrom, p);
 				moveFrom = p;
 		}
-		repaint();
 	}
 
 	/**
@@ -335,20 +471,34 @@ public class Editor extends JFrame {
 		switch (mode) {
 			case DRAW:
 				comm.sendShapeCreate(curr);
+				// gone until the server sends it back
+				redraw(curr);
 				curr = null;
 				break;
 			case MOVE:
 				if (curr == null) break;
 				System.out.println("SHAPE " + currId);
+				// back into the tiles, and drawn live meanwhile
+				damage(sketch.getShapeById(currId));
+				releasedId = currId;
 				curr = null;
 				currId = null;
 				break;
 		}
-
-		repaint();
 	}
 
+	/**
+	 * Usage: java Editor [serverIP] [--virtual] [--batch-window=ms] [--proto=binary|text] [--room=name]
+	 * serverIP may be host:port, or a comma-separated list of them: the server, then standbys to fail over to
+	 * The arrow keys pan around the board; the server only sends the shapes in view
+	 */
 	public static void main(String[] args) {
+		Options options = new Options(args);
+		serverIP = options.getPositional(0, serverIP);
+		virtualThreads = options.getBoolean("virtual", false);
+		batchWindow = options.getLong("batch-window", 0);
+		proto = options.getString("proto", proto);
+		room = options.getString("room", room);
 		SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
 				new Editor();
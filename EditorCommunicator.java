@@ -1,6 +1,18 @@
 import java.awt.*;
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.swing.SwingUtilities;
 
 /**
  * Handles communication to/from the server for the editor
@@ -9,93 +21,407 @@ import java.net.Socket;
  * @author Chris Bailey-Kellogg; overall structure substantially revised Winter 2014
  * @author Travis Peters, Dartmouth CS 10, Winter 2015; remove EditorCommunicatorStandalone (use echo server for testing)
  */
-public class EditorCommunicator extends Thread {
-	private PrintWriter out;		// to server
-	private BufferedReader in;		// from server
+public class EditorCommunicator implements Runnable {
+	private PrintWriter out;		// to server, for text lines
+	private OutputStream rawOut;	// to server, buffered, for binary frames
+	private InputStream in;			// from server
+	private Socket sock;			// to the server
+	private boolean binary;			// whether the server agreed to the binary protocol
+	private String firstLine;		// an old server's first line, read while waiting for WELCOME
 	protected Editor editor;		// handling communication for
+	private ReentrantLock sendLock;	// one message at a time into out
+	private long batchWindow;		// ms to hold outgoing messages before flushing them together (0 = flush each one)
+	private boolean flushScheduled;	// a flush is already coming
+	private ScheduledExecutorService flusher;	// runs the delayed flushes
+	private List<Op> received;		// decoded ops not yet handed to the editor
+	private List<Op> unsynced;		// ops received since the last SYNC, held until the next
+	private int epoch;				// the room run of the last SYNC
+	private long lastSeq = -1;		// its sequence number: everything up to there is applied (-1 = none yet)
+	private String[] servers;		// host[:port] of the server, then of any standbys to fail over to
+	private int current;			// which of them is being used
+	private String proto;			// protocol to ask for
+	private String room;			// the sketch to join
+	private volatile Bounds view;	// the part of the board the editor shows, so is all it needs sending
+	private volatile boolean viewing;	// whether the server agreed to send only what is in view
+	private Bounds syncedView;		// the view the sketch is of, as of the last SYNC (resumed from, if it changes meanwhile)
+	private Bounds unsyncedView;	// the view the server last echoed, once the next SYNC comes
+
+	private static final int MAX_DELIVERY = 512;	// most ops handed to the editor at once
 
 	/**
-	 * Establishes connection and in/out pair
+	 * Establishes connection and in/out pair, asking for the binary protocol
 	 */
 	public EditorCommunicator(String serverIP, Editor editor) {
+		this(serverIP, editor, "binary");
+	}
+
+	/**
+	 * Establishes connection and in/out pair, in the server's default room
+	 * @param proto protocol to ask the server for ("binary" or "text"); old servers always get text
+	 */
+	public EditorCommunicator(String serverIP, Editor editor, String proto) {
+		this(serverIP, editor, proto, null);
+	}
+
+	/**
+	 * Establishes connection and in/out pair
+	 * @param serverIP host[:port] of the server (port 4242 if not given), or a comma-separated list of them:
+	 * the server followed by standbys that may take over from it, tried in turn
+	 * @param proto protocol to ask the server for ("binary" or "text"); old servers always get text
+	 * @param room which of the server's sketches to join, or null for the default one
+	 */
+	public EditorCommunicator(String serverIP, Editor editor, String proto, String room) {
+		this(serverIP, editor, proto, room, null);
+	}
+
+	/**
+	 * Establishes connection and in/out pair, asking to be sent only what is in view
+	 * @param view the part of the board the editor shows, or null for all of it
+	 */
+	public EditorCommunicator(String serverIP, Editor editor, String proto, String room, Bounds view) {
 		this.editor = editor;
-		System.out.println("connecting to " + serverIP + "...");
+		this.servers = serverIP.split(",");
+		this.proto = proto;
+		this.room = room;
+		this.view = view;
+		sendLock = new ReentrantLock();
+		received = new ArrayList<>();
+		unsynced = new ArrayList<>();
+		for (current = 0; current < servers.length; current++) {
+			System.out.println("connecting to " + servers[current] + "...");
+			try {
+				connect();
+				return;
+			}
+			catch (IOException e) {
+				System.err.println("couldn't connect");
+			}
+		}
+		System.exit(-1);
+	}
+
+	/**
+	 * Opens the socket to the current server and its streams, and says HELLO
+	 */
+	private void connect() throws IOException {
+		String server = servers[current];
+		int colon = server.lastIndexOf(':');
+		Socket sock = colon < 0 ? new Socket(server, 4242)
+				: new Socket(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1)));
 		try {
-			Socket sock = new Socket(serverIP, 4242);
-			out = new PrintWriter(sock.getOutputStream(), true);
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+			in = new BufferedInputStream(sock.getInputStream());
+			sendLock.lock();
+			try {
+				this.sock = sock;
+				// no autoflush: send() decides when to flush
+				rawOut = new BufferedOutputStream(sock.getOutputStream(), 64 * 1024);
+				out = new PrintWriter(new OutputStreamWriter(rawOut), false);
+			}
+			finally {
+				sendLock.unlock();
+			}
 			System.out.println("...connected");
+			handshake();
 		}
 		catch (IOException e) {
-			System.err.println("couldn't connect");
-			System.exit(-1);
+			sock.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Says HELLO and waits for the server's WELCOME to learn the protocol
+	 * Asks for SYNC markers, and after a reconnect to resume from the last one
+	 * Gives the view to send only what is in; resuming, the view as of that SYNC, then the VIEW now if it has moved
+	 * An old server doesn't answer HELLO, but always starts by sending the world,
+	 * so whatever else arrives first means text (and is kept to be handled by run)
+	 */
+	private void handshake() throws IOException {
+		binary = false;
+		firstLine = null;
+		Map<String, String> params = new LinkedHashMap<>();
+		params.put("proto", proto);
+		if (room != null) params.put("room", room);
+		params.put("sync", "true");
+		if (lastSeq >= 0) params.put("resume", epoch + "." + lastSeq);
+		Bounds hello = lastSeq >= 0 && syncedView != null ? syncedView : view;
+		if (hello != null) params.put("view", hello.toString());
+		out.println(Handshake.hello(params));
+		out.flush();
+
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		sock.setSoTimeout(5000);
+		try {
+			int b;
+			while ((b = in.read()) != -1 && b != '\n') line.write(b);
+		}
+		catch (SocketTimeoutException e) {
+			System.err.println("no answer to HELLO, assuming text");
+			return;
+		}
+		finally {
+			sock.setSoTimeout(0);
 		}
+		String first = line.toString(StandardCharsets.UTF_8);
+		boolean sync = false;
+		if (Handshake.is("WELCOME", first)) {
+			Map<String, String> agreed = Handshake.parse(first);
+			binary = "binary".equals(agreed.get("proto"));
+			sync = "true".equals(agreed.get("sync"));
+			syncedView = Bounds.parse(agreed.get("view"));
+			viewing = syncedView != null;
+			System.out.println(first);
+		}
+		else {
+			firstLine = first;
+		}
+		if (!sync && lastSeq >= 0) {
+			// a server that can't resume sends the whole world, so start again from nothing
+			lastSeq = -1;
+			received.add(Op.clear());
+			deliver();
+		}
+		Bounds now = view;
+		if (viewing && !now.equals(syncedView)) send(Op.view(now));
 	}
 
 	/**
-	 * Sends message to the server
+	 * Tells the server the editor now shows another part of the board, if it agreed to send only what is in view
+	 * (if not connected just now, the next HELLO carries it)
 	 */
-	public void send(String msg) {
-		out.println(msg);
+	public void sendView(Bounds view) {
+		if (view.equals(this.view)) return;
+		this.view = view;
+		if (viewing) send(Op.view(view));
 	}
 
 	/**
-	 * parses command and executes a corresponding action on the local sketch, through the editor
-	 * @param command
+	 * Starts listening to the server on a thread of its own
+	 * @param virtual whether that should be a virtual thread
 	 */
-	private void parseCommand(String command) {
-		String[] parts = command.split(" ");
-		switch (parts[0]) {
-			case "ADD":
-				Shape shape = null;
-				String[] shapeInfo = command.split("\\|")[1].split(" ");
-				// We cannot really match string->type in java, so a polymorphic solution is not possible
-				switch (parts[2]) {
-					case "ellipse":
-						shape = Ellipse.parseShapeInfo(shapeInfo);
-						break;
-					case "rectangle":
-						shape = Rectangle.parseShapeInfo(shapeInfo);
-						break;
-					case "polyline":
-						shape = Polyline.parseShapeInfo(shapeInfo);
-						break;
-					case "segment":
-						shape = Segment.parseShapeInfo(shapeInfo);
-						break;
-				}
-				
-				editor.addShape(Integer.parseInt(parts[1]), shape);
+	public void start(boolean virtual) {
+		Threads.start(this, "editor-communicator", virtual);
+	}
+
+	/**
+	 * Holds outgoing messages for up to the window and then sends them in one write,
+	 * trading a few ms of latency for far fewer packets during a drag
+	 * @param millis batch window (0 to send every message right away)
+	 */
+	public void setBatchWindow(long millis) {
+		batchWindow = millis;
+		if (millis > 0 && flusher == null) {
+			flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "editor-flush");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+
+	/**
+	 * Sends message to the server, in whichever protocol was agreed
+	 */
+	public void send(Op op) {
+		sendLock.lock();
+		try {
+			if (binary) rawOut.write(op.toBinary());
+			else out.println(op.toString());
+			if (batchWindow == 0) {
+				flushOut();
+			}
+			else if (!flushScheduled) {
+				flushScheduled = true;
+				flusher.schedule(this::flush, batchWindow, TimeUnit.MILLISECONDS);
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			sendLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes out whatever send() has been holding back
+	 */
+	private void flush() {
+		sendLock.lock();
+		try {
+			flushScheduled = false;
+			flushOut();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			sendLock.unlock();
+		}
+	}
+
+	/**
+	 * Flushes the stream for the agreed protocol; called with the send lock held
+	 */
+	private void flushOut() throws IOException {
+		if (binary) rawOut.flush();
+		else out.flush();
+	}
+
+	/**
+	 * Holds a decoded op from the server for the editor, handing them over once nothing more
+	 * is immediately readable (or enough have piled up)
+	 * So a big sketch being streamed in is drawn a chunk at a time as it arrives,
+	 * rather than all at once at the end or with a repaint per shape
+	 * Once the server has sent a SYNC, edits are only handed over at the next SYNC, so the editor has
+	 * applied exactly the edits up to the last SYNC's sequence number, the point to resume from
+	 * @param more whether more input is ready to be read
+	 */
+	private void receive(Op op, boolean more) {
+		if (op != null) {
+			switch (op.getType()) {
+				case SYNC:
+					epoch = op.getEpoch();
+					lastSeq = op.getSeq();
+					received.addAll(unsynced);
+					unsynced.clear();
+					if (unsyncedView != null) syncedView = unsyncedView;
+					unsyncedView = null;
+					break;
+				case CLEAR:
+					// the whole world is coming again, so there's nothing to resume from until it has
+					lastSeq = -1;
+					unsynced.clear();
+					unsyncedView = null;
+					received.add(op);
+					break;
+				case VIEW:
+					// the server has sent what moving the view brought in and took out
+					if (lastSeq >= 0) unsyncedView = op.getArea();
+					else syncedView = op.getArea();
+					break;
+				default:
+					if (lastSeq >= 0) unsynced.add(op);
+					else received.add(op);
+			}
+		}
+		if (!more || received.size() >= MAX_DELIVERY) deliver();
+	}
+
+	/**
+	 * Applies the held ops on the Swing thread, where the editor reads and paints the sketch
+	 */
+	private void deliver() {
+		if (received.isEmpty()) return;
+		List<Op> ops = received;
+		received = new ArrayList<>();
+		SwingUtilities.invokeLater(() -> {
+			for (Op op : ops) apply(op);
+		});
+	}
+
+	/**
+	 * executes an op from the server on the local sketch, through the editor
+	 * @param op ADD, DELETE, LEAVE, MOVE, RECOLOR, CLEAR, or a BATCH of those (SYNCs and VIEWs are handled by receive)
+	 */
+	private void apply(Op op) {
+		switch (op.getType()) {
+			case ADD:
+				editor.addShape(op.getId(), op.getShape());
+				break;
+			case DELETE:
+			case LEAVE:
+				// a shape gone out of view is forgotten until an ADD brings it back
+				editor.deleteShape(op.getId());
+				break;
+			case MOVE:
+				editor.moveShape(op.getId(), op.getDx(), op.getDy());
 				break;
-			case "DELETE":
-				editor.deleteShape(Integer.parseInt(parts[1]));
+			case RECOLOR:
+				editor.recolorShape(op.getId(), new Color(op.getColor()));
 				break;
-			case "MOVE":
-				editor.moveShape(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+			case CLEAR:
+				// we fell too far behind; the server is about to send the whole world again
+				editor.clearShapes();
 				break;
-			case "RECOLOR":
-				editor.recolorShape(Integer.parseInt(parts[1]),new Color(Integer.parseInt(parts[2])));
+			case BATCH:
+				for (Op inner : op.getOps()) apply(inner);
 				break;
 		}
 	}
+
 	/**
-	 * Keeps listening for and handling (your code) messages from the server
+	 * Keeps listening for and handling (your code) messages from the server,
+	 * reconnecting whenever it hangs up
 	 */
 	public void run() {
+		while (true) {
+			listen();
+			System.out.println("server hung up");
+			if (!reconnect()) return;
+		}
+	}
+
+	/**
+	 * Connects again, retrying with a growing delay until the server, or one of the standbys after it,
+	 * is back; a standby that has taken over has the server's sequence numbers, so resuming works there too
+	 * The ops since the last SYNC are dropped, as the server will send them again; with no SYNC to resume
+	 * from, the sketch is cleared for the whole world to be sent again
+	 * @return false if interrupted first
+	 */
+	private boolean reconnect() {
+		unsynced.clear();
+		unsyncedView = null;
+		if (lastSeq < 0) received.add(Op.clear());
+		deliver();
+		long delay = 250;
+		while (true) {
+			try {
+				Thread.sleep(delay);
+			}
+			catch (InterruptedException e) {
+				return false;
+			}
+			System.out.println("reconnecting to " + servers[current] + "...");
+			try {
+				connect();
+				return true;
+			}
+			catch (IOException e) {
+				current = (current + 1) % servers.length;
+				delay = Math.min(delay * 2, 5000);
+			}
+		}
+	}
+
+	/**
+	 * Handles messages from the server until it hangs up
+	 */
+	private void listen() {
 		try {
 			// Handle messages
-			String line;
-			while ((line = in.readLine()) != null) {
-				System.out.println(line);
-				parseCommand(line);
+			if (binary) {
+				BinaryProtocol.Reader reader = new BinaryProtocol.Reader(in);
+				while (true) {
+					Op op = reader.read();
+					receive(op, reader.ready());
+				}
+			}
+			if (firstLine != null) {
+				receive(Op.parse(firstLine), false);
+			}
+			// decodes each line in place, without splitting it into Strings
+			CommandDecoder decoder = new CommandDecoder(in);
+			while (decoder.nextLine()) {
+				receive(Op.decode(decoder), decoder.ready());
 			}
 		}
+		catch (EOFException e) {
+			// server closed the connection between frames
+		}
 		catch (IOException e) {
 			e.printStackTrace();
 		}
-		finally {
-			System.out.println("server hung up");
-		}
 	}
 
 	/**
@@ -103,11 +429,7 @@ public class EditorCommunicator extends Thread {
 	 * @param shape shape to encode
 	 */
 	public void sendShapeCreate(Shape shape) {
-		StringBuilder sb = new StringBuilder();
-		sb.append("CREATE ");
-		// to string serializes the shape
-		sb.append(shape.toString());
-		send(sb.toString());
+		send(Op.create(shape));
 	}
 
 	/**
@@ -117,15 +439,7 @@ public class EditorCommunicator extends Thread {
 	 * @param p2 new position of the shape (only consider mouse position at end of drag)
 	 */
 	public void sendShapeMove(Integer shapeId, Point p1, Point p2) {
-		StringBuilder sb = new StringBuilder();
-		sb.append("MOVE ");
-		sb.append(shapeId);
-		sb.append(" ");
-		sb.append(p2.x - p1.x);
-		sb.append(" ");
-		sb.append(p2.y - p1.y);
-
-		send(sb.toString());
+		send(Op.move(shapeId, p2.x - p1.x, p2.y - p1.y));
 	}
 
 	/**
@@ -133,7 +447,7 @@ public class EditorCommunicator extends Thread {
 	 * @param shapeId ID of the deleted shape
 	 */
 	public void sendShapeDelete(Integer shapeId) {
-		send("DELETE "+shapeId);
+		send(Op.delete(shapeId));
 	}
 
 	/**
@@ -142,7 +456,7 @@ public class EditorCommunicator extends Thread {
 	 * @param color new color of the shape
 	 */
 	public void sendShapeRecolor(Integer shapeId, int color) {
-		send("RECOLOR "+ shapeId + " " + color);
+		send(Op.recolor(shapeId, color));
 	}
 
 }
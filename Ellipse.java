@@ -1,5 +1,7 @@
 import java.awt.Color;
 import java.awt.Graphics;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * An ellipse-shaped Shape
@@ -12,6 +14,7 @@ import java.awt.Graphics;
 public class Ellipse implements Shape {
 	private int x1, y1, x2, y2;		// upper left and lower right
 	private Color color;
+	private Bounds bounds;			// cached getBounds(), or null to work out again
 
 	/**
 	 * An "empty" ellipse, with only one point set so far
@@ -38,23 +41,38 @@ public class Ellipse implements Shape {
 		this.x1 = Math.min(x1, x2);
 		this.y1 = Math.min(y1, y2);
 		this.x2 = Math.max(x1, x2);
-		this.y2 = Math.max(y1, y2);		
+		this.y2 = Math.max(y1, y2);
+		bounds = null;		
 	}
 
 	@Override
 	public boolean contains(int x, int y) {
+		if (!getBounds().contains(x, y)) return false;
 		double a = (x2-x1)/2.0, b = (y2-y1)/2.0;
 		double dx = x - (x1 + a); // horizontal distance from center
 		double dy = y - (y1 + b); // vertical distance from center
 
 		// Apply the standard geometry formula. (See CRC, 29th edition, p. 178.)
-		return Math.pow(dx / a, 2) + Math.pow(dy / b, 2) <= 1;
+		double u = dx / a, v = dy / b;
+		return u * u + v * v <= 1;
+	}
+
+	@Override
+	public Bounds getBounds() {
+		if (bounds == null) bounds = new Bounds(x1, y1, x2, y2);
+		return bounds;
 	}
 
 	@Override
 	public void moveBy(int dx, int dy) {
 		x1 += dx; y1 += dy;
 		x2 += dx; y2 += dy;
+		if (bounds != null) bounds = bounds.translate(dx, dy);
+	}
+
+	@Override
+	public Shape copy() {
+		return new Ellipse(x1, y1, x2, y2, color);
 	}
 
 	@Override
@@ -72,23 +90,50 @@ public class Ellipse implements Shape {
 		g.setColor(color);
 		g.fillOval(x1, y1, x2-x1, y2-y1);
 	}
-	/**
-	 * This method returns a ellipse with all the points and its respective color for parsing purposes
-	 * @param shapeInfo
-	 * @return
-	 */
-	public static Ellipse parseShapeInfo(String[] shapeInfo) {
-		return new Ellipse(
-								Integer.parseInt(shapeInfo[0]),
-								Integer.parseInt(shapeInfo[1]),
-								Integer.parseInt(shapeInfo[2]),
-								Integer.parseInt(shapeInfo[3]),
-								new Color(Integer.parseInt(shapeInfo[4]))
-						);
+
+	@Override
+	public void writeText(Appendable out) throws IOException {
+		out.append("ellipse |");
+		Shape.appendInt(out, x1); out.append(' ');
+		Shape.appendInt(out, y1); out.append(' ');
+		Shape.appendInt(out, x2); out.append(' ');
+		Shape.appendInt(out, y2); out.append(' ');
+		Shape.appendInt(out, color.getRGB());
+		out.append('|');
 	}
 
 	@Override
 	public String toString() {
-		return "ellipse |"+x1+" "+y1+" "+x2+" "+y2+" "+color.getRGB()+"|";
+		return Shape.toText(this);
+	}
+
+	@Override
+	public int binarySize() {
+		return 1 + 5 * 4;
+	}
+
+	@Override
+	public void writeBinary(ByteBuffer buf) {
+		buf.put(BinaryProtocol.ELLIPSE);
+		buf.putInt(color.getRGB());
+		buf.putInt(x1); buf.putInt(y1);
+		buf.putInt(x2); buf.putInt(y2);
+	}
+
+	/**
+	 * Decodes the "x1 y1 x2 y2 color|" part of a text command, straight from the decoder's buffer
+	 * @param d decoder positioned just after the opening '|'
+	 */
+	public static Ellipse decode(CommandDecoder d) {
+		int x1 = d.nextInt(), y1 = d.nextInt(), x2 = d.nextInt(), y2 = d.nextInt();
+		return new Ellipse(x1, y1, x2, y2, new Color(d.nextInt()));
+	}
+
+	/**
+	 * Reads a ellipse written by writeBinary, positioned just after the type byte
+	 */
+	public static Ellipse readBinary(ByteBuffer buf) {
+		Color color = new Color(buf.getInt());
+		return new Ellipse(buf.getInt(), buf.getInt(), buf.getInt(), buf.getInt(), color);
 	}
 }
@@ -0,0 +1,57 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The optional first line exchanged on a connection, so old and new editors can share a server
+ * A new editor starts with "HELLO <version> key=value ...", e.g. "HELLO 1 proto=binary room=team1",
+ * and the server answers "WELCOME <version> key=value ..." with what it agreed to before sending
+ * anything else; after that both sides switch to the agreed protocol
+ * An old editor never says HELLO, so the server times out waiting for it and carries on in text;
+ * an old server treats HELLO as an unknown command, and never says WELCOME
+ */
+public class Handshake {
+	public static final int VERSION = 1;
+
+	/**
+	 * @return the line a client opens with
+	 */
+	public static String hello(Map<String, String> params) {
+		return line("HELLO", params);
+	}
+
+	/**
+	 * @return the line the server answers a HELLO with
+	 */
+	public static String welcome(Map<String, String> params) {
+		return line("WELCOME", params);
+	}
+
+	/**
+	 * @return whether the line is a handshake line of the given kind ("HELLO" or "WELCOME")
+	 */
+	public static boolean is(String kind, String line) {
+		return line != null && (line.equals(kind) || line.startsWith(kind + " "));
+	}
+
+	/**
+	 * Parses the key=value parameters of a HELLO or WELCOME line
+	 */
+	public static Map<String, String> parse(String line) {
+		Map<String, String> params = new LinkedHashMap<>();
+		String[] parts = line.split(" ");
+		for (int i = 2; i < parts.length; i++) {
+			int eq = parts[i].indexOf('=');
+			if (eq > 0) params.put(parts[i].substring(0, eq), parts[i].substring(eq + 1));
+		}
+		return params;
+	}
+
+	private static String line(String kind, Map<String, String> params) {
+		StringBuilder sb = new StringBuilder(kind);
+		sb.append(" ").append(VERSION);
+		for (Map.Entry<String, String> param : params.entrySet()) {
+			sb.append(" ").append(param.getKey()).append("=").append(param.getValue());
+		}
+		return sb.toString();
+	}
+}
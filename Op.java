@@ -0,0 +1,287 @@
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * One edit or message passed between the server and its clients: CREATE (client to server),
+ * ADD, MOVE, RECOLOR, DELETE, CLEAR, a BATCH of those (e.g. the world description),
+ * SYNC (how far through the room's edits the client has been sent), or a block of raw TEXT,
+ * and, for a client that only looks at part of the board, VIEW (client to server: the part it is looking at)
+ * and LEAVE (a shape has gone out of view, so the client can forget it until an ADD brings it back)
+ * Ops are immutable and shared by every client they are broadcast to, so each one is
+ * only ever encoded once per protocol
+ */
+public class Op {
+	public enum Type {
+		CREATE, ADD, MOVE, RECOLOR, DELETE, CLEAR, SYNC, BATCH, TEXT, VIEW, LEAVE
+	}
+
+	private final Type type;
+	private final int id;			// shape the op applies to
+	private final int dx, dy;		// MOVE deltas
+	private final int color;		// RECOLOR rgb
+	private final Shape shape;		// CREATE/ADD shape
+	private final List<Op> ops;		// BATCH contents
+	private final int epoch;		// SYNC: which run of the room seq counts in
+	private final long seq;			// SYNC: sequence number of the last edit sent
+	private final long time;		// SYNC: when the server sent it (ms since the epoch, by the server's clock)
+	private final Bounds area;		// VIEW: the part of the board the client is looking at
+	private volatile String text;	// the op in the text protocol, built on first use (by any of the writers sharing the op)
+	private volatile byte[] binary;	// the op in the binary protocol, built on first use
+
+	private Op(Type type, int id, int dx, int dy, int color, Shape shape, List<Op> ops, String text) {
+		this(type, id, dx, dy, color, shape, ops, text, 0, 0, 0, null);
+	}
+
+	private Op(Type type, int id, int dx, int dy, int color, Shape shape, List<Op> ops, String text,
+			   int epoch, long seq, long time, Bounds area) {
+		this.type = type;
+		this.id = id;
+		this.dx = dx; this.dy = dy;
+		this.color = color;
+		this.shape = shape;
+		this.ops = ops;
+		this.text = text;
+		this.epoch = epoch;
+		this.seq = seq;
+		this.time = time;
+		this.area = area;
+	}
+
+	public static Op create(Shape shape) {
+		return new Op(Type.CREATE, 0, 0, 0, 0, shape, null, null);
+	}
+
+	/**
+	 * The shape must not change from now on (no shape in a Sketch does), as it is only encoded when first needed,
+	 * by whichever client's writer gets to it first
+	 */
+	public static Op add(int id, Shape shape) {
+		return new Op(Type.ADD, id, 0, 0, 0, shape, null, null);
+	}
+
+	public static Op move(int id, int dx, int dy) {
+		return new Op(Type.MOVE, id, dx, dy, 0, null, null, null);
+	}
+
+	public static Op recolor(int id, int color) {
+		return new Op(Type.RECOLOR, id, 0, 0, color, null, null, null);
+	}
+
+	public static Op delete(int id) {
+		return new Op(Type.DELETE, id, 0, 0, 0, null, null, null);
+	}
+
+	/**
+	 * Tells a client to throw away its whole sketch
+	 */
+	public static Op clear() {
+		return new Op(Type.CLEAR, 0, 0, 0, 0, null, null, "CLEAR");
+	}
+
+	/**
+	 * Tells a client that it has now been sent every edit up to the seq'th, so it can ask to resume from there
+	 * @param epoch identifies the room's run of sequence numbers, which starts over when the room is reopened
+	 * @param time when it is sent, so a follower can tell how far behind it is
+	 */
+	public static Op sync(int epoch, long seq, long time) {
+		return new Op(Type.SYNC, 0, 0, 0, 0, null, null, null, epoch, seq, time, null);
+	}
+
+	/**
+	 * Tells the server which part of the board the client is looking at now, so it is only sent what is in it
+	 */
+	public static Op view(Bounds area) {
+		return new Op(Type.VIEW, 0, 0, 0, 0, null, null, null, 0, 0, 0, area);
+	}
+
+	/**
+	 * Tells a client that a shape has gone out of its view (it hasn't been deleted; an ADD brings it back in)
+	 */
+	public static Op leave(int id) {
+		return new Op(Type.LEAVE, id, 0, 0, 0, null, null, null);
+	}
+
+	/**
+	 * Several ops sent as one, in order
+	 */
+	public static Op batch(List<Op> ops) {
+		return new Op(Type.BATCH, 0, 0, 0, 0, null, ops, null);
+	}
+
+	/**
+	 * Raw text passed through as is; only meaningful to text clients
+	 */
+	public static Op text(String text) {
+		return new Op(Type.TEXT, 0, 0, 0, 0, null, null, text);
+	}
+
+	/**
+	 * An ADD just received; the same as add
+	 */
+	public static Op received(int id, Shape shape) {
+		return add(id, shape);
+	}
+
+	/**
+	 * Parses one line of the text protocol
+	 * @param command line to parse
+	 * @return the op, or null if it isn't an op (e.g. an empty or unknown line)
+	 */
+	public static Op parse(String command) {
+		return decode(new CommandDecoder().reset(command));
+	}
+
+	/**
+	 * Decodes the decoder's current line of the text protocol
+	 * @return the op, or null if it isn't an op (e.g. an empty or unknown line)
+	 */
+	public static Op decode(CommandDecoder d) {
+		switch (d.opcode()) {
+			case BinaryProtocol.CREATE:
+				Shape shape = Sketch.decodeShape(d);
+				return shape == null ? null : create(shape);
+			case BinaryProtocol.ADD:
+				int id = d.nextInt();
+				shape = Sketch.decodeShape(d);
+				return shape == null ? null : received(id, shape);
+			case BinaryProtocol.DELETE:
+				return delete(d.nextInt());
+			case BinaryProtocol.MOVE:
+				id = d.nextInt();
+				int dx = d.nextInt();
+				return move(id, dx, d.nextInt());
+			case BinaryProtocol.RECOLOR:
+				id = d.nextInt();
+				return recolor(id, 0xff000000 | d.nextInt());		// opaque, as new Color(rgb) would make it
+			case BinaryProtocol.CLEAR:
+				return clear();
+			case BinaryProtocol.SYNC:
+				int epoch = d.nextInt();
+				long seq = d.nextLong();
+				return sync(epoch, seq, d.nextLong());
+			case BinaryProtocol.VIEW:
+				int x1 = d.nextInt(), y1 = d.nextInt(), x2 = d.nextInt();
+				return view(new Bounds(x1, y1, x2, d.nextInt()));
+			case BinaryProtocol.LEAVE:
+				return leave(d.nextInt());
+		}
+		return null;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public int getDx() {
+		return dx;
+	}
+
+	public int getDy() {
+		return dy;
+	}
+
+	public int getColor() {
+		return color;
+	}
+
+	public Shape getShape() {
+		return shape;
+	}
+
+	public List<Op> getOps() {
+		return ops;
+	}
+
+	public int getEpoch() {
+		return epoch;
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	public Bounds getArea() {
+		return area;
+	}
+
+	/**
+	 * @return the op as a frame (or frames, for a BATCH) of the binary protocol
+	 */
+	public byte[] toBinary() {
+		if (binary == null) binary = BinaryProtocol.encode(this);
+		return binary;
+	}
+
+	/**
+	 * Writes the op in the text protocol into out, without the trailing newline
+	 * A CREATE or ADD writes its shape straight through Shape.writeText, with no String in between
+	 */
+	public void writeText(Appendable out) throws IOException {
+		switch (type) {
+			case CREATE:
+				out.append("CREATE ");
+				shape.writeText(out);
+				break;
+			case ADD:
+				out.append("ADD ");
+				Shape.appendInt(out, id);
+				out.append(' ');
+				shape.writeText(out);
+				break;
+			default:
+				out.append(toString());
+		}
+	}
+
+	/**
+	 * @return the op in the line-based text protocol, without the trailing newline
+	 */
+	@Override
+	public String toString() {
+		if (text == null) {
+			switch (type) {
+				case CREATE:
+					text = "CREATE " + Shape.toText(shape);
+					break;
+				case ADD:
+					text = "ADD " + id + " " + Shape.toText(shape);
+					break;
+				case MOVE:
+					text = "MOVE " + id + " " + dx + " " + dy;
+					break;
+				case RECOLOR:
+					text = "RECOLOR " + id + " " + color;
+					break;
+				case DELETE:
+					text = "DELETE " + id;
+					break;
+				case SYNC:
+					text = "SYNC " + epoch + " " + seq + " " + time;
+					break;
+				case VIEW:
+					text = "VIEW " + area.x1 + " " + area.y1 + " " + area.x2 + " " + area.y2;
+					break;
+				case LEAVE:
+					text = "LEAVE " + id;
+					break;
+				case BATCH:
+					StringBuilder sb = new StringBuilder();
+					for (Op op : ops) {
+						if (sb.length() > 0) sb.append("\n");
+						sb.append(op.toString());
+					}
+					text = sb.toString();
+					break;
+			}
+		}
+		return text;
+	}
+}
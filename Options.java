@@ -0,0 +1,62 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Startup options given on the command line as --key=value or a bare --flag
+ * Anything that doesn't start with "--" is kept as a positional argument
+ */
+public class Options {
+	private Map<String, String> values;		// option name -> value ("true" for bare flags)
+	private String[] positional;			// arguments without a leading "--"
+
+	public Options(String[] args) {
+		values = new HashMap<>();
+		int n = 0;
+		String[] rest = new String[args.length];
+		for (String arg : args) {
+			if (arg.startsWith("--")) {
+				int eq = arg.indexOf('=');
+				if (eq < 0) values.put(arg.substring(2), "true");
+				else values.put(arg.substring(2, eq), arg.substring(eq + 1));
+			}
+			else {
+				rest[n++] = arg;
+			}
+		}
+		positional = new String[n];
+		System.arraycopy(rest, 0, positional, 0, n);
+	}
+
+	/**
+	 * @return the raw value of an option, or the default if it wasn't given
+	 */
+	public String getString(String name, String def) {
+		String value = values.get(name);
+		return value == null ? def : value;
+	}
+
+	public int getInt(String name, int def) {
+		String value = values.get(name);
+		return value == null ? def : Integer.parseInt(value);
+	}
+
+	public long getLong(String name, long def) {
+		String value = values.get(name);
+		return value == null ? def : Long.parseLong(value);
+	}
+
+	/**
+	 * @return true if the option was given as a bare flag or with value "true"
+	 */
+	public boolean getBoolean(String name, boolean def) {
+		String value = values.get(name);
+		return value == null ? def : Boolean.parseBoolean(value);
+	}
+
+	/**
+	 * @return the i-th positional argument, or the default if there aren't that many
+	 */
+	public String getPositional(int i, String def) {
+		return i < positional.length ? positional[i] : def;
+	}
+}
@@ -0,0 +1,218 @@
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of ops waiting to be written to one client
+ * The broadcaster only ever offers to it, so a client on a slow link fills up its own queue
+ * instead of stalling every edit; what happens when it is full is the slow-consumer policy
+ */
+public class OutboundQueue {
+	public enum Policy {
+		RESYNC,			// drop everything queued and send the client a fresh copy of the world
+		DISCONNECT,		// hang up on the client
+		COALESCE		// merge queued MOVEs/RECOLORs of the same shape, resync if that isn't enough
+	}
+
+	/**
+	 * Marker handed to the writer in place of the dropped ops: it should clear the client and resend the world
+	 */
+	public static final Op RESYNC = Op.text("CLEAR");
+
+	private ArrayDeque<Op> ops;					// waiting to be written, oldest first
+	private int capacity;						// most ops held before the policy kicks in
+	private Policy policy;						// what to do when full
+	private boolean resyncPending;				// RESYNC has been queued; drop ops until the writer takes its snapshot
+	private boolean closed;						// hung up, or DISCONNECT policy tripped; nothing more gets queued
+	private ReentrantLock lock;
+	private Condition notEmpty;
+
+	public OutboundQueue(int capacity, Policy policy) {
+		this.capacity = capacity;
+		this.policy = policy;
+		ops = new ArrayDeque<>();
+		lock = new ReentrantLock();
+		notEmpty = lock.newCondition();
+	}
+
+	/**
+	 * Queues an op for the client, applying the slow-consumer policy if the queue is full
+	 * @return false if the client should be disconnected
+	 */
+	public boolean offer(Op op) {
+		lock.lock();
+		try {
+			if (closed) return false;
+			if (resyncPending) return true;		// the coming snapshot will include it
+			if (ops.size() >= capacity) {
+				if (policy == Policy.DISCONNECT) {
+					close();
+					return false;
+				}
+				if (policy == Policy.COALESCE) coalesce();
+				if (ops.size() >= capacity) {
+					ops.clear();
+					ops.add(RESYNC);
+					resyncPending = true;
+					notEmpty.signal();
+					return true;
+				}
+			}
+			ops.add(op);
+			notEmpty.signal();
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops the queue: offers fail from now on and a waiting writer wakes up empty-handed
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			ops.clear();
+			notEmpty.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called by the client's fan-out stage once the snapshot for a RESYNC has started, in sequence order with the
+	 * edits it queues, so ops queued from then on are the ones the snapshot doesn't include
+	 */
+	public void resyncDone() {
+		lock.lock();
+		try {
+			resyncPending = false;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for at least one op, then moves everything queued into the batch
+	 * @return false if the queue was closed
+	 */
+	public boolean drainTo(List<Op> batch) throws InterruptedException {
+		lock.lock();
+		try {
+			while (ops.isEmpty() && !closed) notEmpty.await();
+			if (closed) return false;
+			batch.addAll(ops);
+			ops.clear();
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Like drainTo, but gives up after the timeout
+	 * @return number of ops added to the batch (0 on timeout), or -1 if the queue was closed
+	 */
+	public int drainTo(List<Op> batch, long timeout, TimeUnit unit) throws InterruptedException {
+		lock.lock();
+		try {
+			long nanos = unit.toNanos(timeout);
+			while (ops.isEmpty() && !closed && nanos > 0) nanos = notEmpty.awaitNanos(nanos);
+			if (closed) return -1;
+			int n = ops.size();
+			batch.addAll(ops);
+			ops.clear();
+			return n;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the next op without waiting, or null if there is none
+	 */
+	public Op poll() {
+		lock.lock();
+		try {
+			return ops.poll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return how many ops are waiting, i.e. how far behind the client is
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return ops.size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Sums queued MOVEs of the same shape into one and keeps only the last RECOLOR of each shape
+	 * Ops on different shapes commute, so the merged op can stand in the place of the first one
+	 * Nothing is merged across a SYNC, as a client that resumes from it must have had exactly the ops before it,
+	 * nor across an ADD, LEAVE or DELETE of the same shape, or a CLEAR or BATCH (which may hold any of those)
+	 * Called with the lock held
+	 */
+	private void coalesce() {
+		ArrayList<Op> merged = new ArrayList<>(ops.size());
+		Map<Integer, Integer> moveAt = new HashMap<>();		// shape id -> index of its pending MOVE in merged
+		Map<Integer, Integer> recolorAt = new HashMap<>();	// shape id -> index of its pending RECOLOR in merged
+		for (Op op : ops) {
+			Integer at;
+			switch (op.getType()) {
+				case MOVE:
+					at = moveAt.get(op.getId());
+					if (at != null) {
+						Op prev = merged.get(at);
+						merged.set(at, Op.move(op.getId(), prev.getDx() + op.getDx(), prev.getDy() + op.getDy()));
+						continue;
+					}
+					moveAt.put(op.getId(), merged.size());
+					break;
+				case RECOLOR:
+					at = recolorAt.get(op.getId());
+					if (at != null) {
+						merged.set(at, op);
+						continue;
+					}
+					recolorAt.put(op.getId(), merged.size());
+					break;
+				case DELETE:
+				case ADD:
+				case LEAVE:
+					// the shape leaves or (re)enters the client's copy here, so edits on either side stay apart
+					moveAt.remove(op.getId());
+					recolorAt.remove(op.getId());
+					break;
+				case CLEAR:
+				case BATCH:
+				case SYNC:
+					moveAt.clear();
+					recolorAt.clear();
+					break;
+			}
+			merged.add(op);
+		}
+		ops.clear();
+		ops.addAll(merged);
+	}
+}
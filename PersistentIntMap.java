@@ -0,0 +1,223 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable map from int keys, kept in key order, where put and remove return a new map that shares
+ * all but O(log n) nodes with the old one (an AVL tree with path copying)
+ * So whoever holds a map holds a consistent version of it that no later edit can change,
+ * and taking one costs nothing: no copy, no lock
+ */
+public final class PersistentIntMap<V> {
+	private static final PersistentIntMap<?> EMPTY = new PersistentIntMap<>(null);
+
+	private final Node<V> root;
+
+	/**
+	 * One entry, and the subtree under it; never changes once made
+	 */
+	public static final class Node<V> {
+		private final int key;
+		private final V value;
+		private final Node<V> left, right;
+		private final int height;			// of the subtree
+		private final int size;				// entries in the subtree
+
+		private Node(int key, V value, Node<V> left, Node<V> right) {
+			this.key = key;
+			this.value = value;
+			this.left = left;
+			this.right = right;
+			height = Math.max(height(left), height(right)) + 1;
+			size = size(left) + size(right) + 1;
+		}
+
+		public int getKey() {
+			return key;
+		}
+
+		public V getValue() {
+			return value;
+		}
+	}
+
+	private PersistentIntMap(Node<V> root) {
+		this.root = root;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <V> PersistentIntMap<V> empty() {
+		return (PersistentIntMap<V>) EMPTY;
+	}
+
+	/**
+	 * Builds a map from entries already in increasing key order, in linear time (no rebalancing needed)
+	 * @param keys keys[0..n), increasing
+	 * @param values values[0..n), matching the keys
+	 */
+	public static <V> PersistentIntMap<V> fromSorted(int[] keys, V[] values, int n) {
+		return new PersistentIntMap<>(build(keys, values, 0, n));
+	}
+
+	private static <V> Node<V> build(int[] keys, V[] values, int from, int to) {
+		if (from >= to) return null;
+		int mid = (from + to) >>> 1;
+		return new Node<>(keys[mid], values[mid], build(keys, values, from, mid), build(keys, values, mid + 1, to));
+	}
+
+	public int size() {
+		return size(root);
+	}
+
+	public boolean isEmpty() {
+		return root == null;
+	}
+
+	/**
+	 * @return the value for the key, or null if there is none
+	 */
+	public V get(int key) {
+		Node<V> n = root;
+		while (n != null) {
+			if (key < n.key) n = n.left;
+			else if (key > n.key) n = n.right;
+			else return n.value;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the highest key, or 0 if the map is empty
+	 */
+	public int lastKey() {
+		Node<V> n = root;
+		if (n == null) return 0;
+		while (n.right != null) n = n.right;
+		return n.key;
+	}
+
+	/**
+	 * @return a map like this one but with the key mapped to the value
+	 */
+	public PersistentIntMap<V> put(int key, V value) {
+		return new PersistentIntMap<>(put(root, key, value));
+	}
+
+	/**
+	 * @return a map like this one but without the key (this map itself if it didn't have the key)
+	 */
+	public PersistentIntMap<V> remove(int key) {
+		Node<V> removed = remove(root, key);
+		return removed == root ? this : new PersistentIntMap<>(removed);
+	}
+
+	/**
+	 * @return every entry, in key order
+	 */
+	public Iterable<Node<V>> entries() {
+		return () -> new EntryIterator<>(root, Long.MIN_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return the entries with keys in (after, upTo], in key order
+	 */
+	public Iterable<Node<V>> between(int after, int upTo) {
+		return () -> new EntryIterator<>(root, after, upTo);
+	}
+
+	private static int height(Node<?> n) {
+		return n == null ? 0 : n.height;
+	}
+
+	private static int size(Node<?> n) {
+		return n == null ? 0 : n.size;
+	}
+
+	private static <V> Node<V> put(Node<V> n, int key, V value) {
+		if (n == null) return new Node<>(key, value, null, null);
+		if (key < n.key) return balance(n.key, n.value, put(n.left, key, value), n.right);
+		if (key > n.key) return balance(n.key, n.value, n.left, put(n.right, key, value));
+		return new Node<>(key, value, n.left, n.right);
+	}
+
+	private static <V> Node<V> remove(Node<V> n, int key) {
+		if (n == null) return null;
+		if (key < n.key) {
+			Node<V> left = remove(n.left, key);
+			return left == n.left ? n : balance(n.key, n.value, left, n.right);
+		}
+		if (key > n.key) {
+			Node<V> right = remove(n.right, key);
+			return right == n.right ? n : balance(n.key, n.value, n.left, right);
+		}
+		if (n.left == null) return n.right;
+		if (n.right == null) return n.left;
+		Node<V> min = n.right;
+		while (min.left != null) min = min.left;
+		return balance(min.key, min.value, n.left, removeMin(n.right));
+	}
+
+	private static <V> Node<V> removeMin(Node<V> n) {
+		if (n.left == null) return n.right;
+		return balance(n.key, n.value, removeMin(n.left), n.right);
+	}
+
+	/**
+	 * Makes a node from the parts, rotating if one side has grown two taller than the other
+	 */
+	private static <V> Node<V> balance(int key, V value, Node<V> left, Node<V> right) {
+		int hl = height(left), hr = height(right);
+		if (hl > hr + 1) {
+			if (height(left.left) >= height(left.right)) {
+				return new Node<>(left.key, left.value, left.left, new Node<>(key, value, left.right, right));
+			}
+			Node<V> lr = left.right;
+			return new Node<>(lr.key, lr.value, new Node<>(left.key, left.value, left.left, lr.left),
+					new Node<>(key, value, lr.right, right));
+		}
+		if (hr > hl + 1) {
+			if (height(right.right) >= height(right.left)) {
+				return new Node<>(right.key, right.value, new Node<>(key, value, left, right.left), right.right);
+			}
+			Node<V> rl = right.left;
+			return new Node<>(rl.key, rl.value, new Node<>(key, value, left, rl.left),
+					new Node<>(right.key, right.value, rl.right, right.right));
+		}
+		return new Node<>(key, value, left, right);
+	}
+
+	/**
+	 * In-order walk of the keys in (after, upTo], with the path down the tree on a small stack
+	 */
+	private static class EntryIterator<V> implements Iterator<Node<V>> {
+		private Node<?>[] stack;
+		private int depth;
+		private final int upTo;
+
+		EntryIterator(Node<V> root, long after, int upTo) {
+			this.upTo = upTo;
+			stack = new Node<?>[height(root) + 1];
+			// the path to the first key past after
+			for (Node<V> n = root; n != null; ) {
+				if (n.key > after) {
+					stack[depth++] = n;
+					n = n.left;
+				}
+				else {
+					n = n.right;
+				}
+			}
+		}
+
+		public boolean hasNext() {
+			return depth > 0 && stack[depth - 1].key <= upTo;
+		}
+
+		@SuppressWarnings("unchecked")
+		public Node<V> next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			Node<V> n = (Node<V>) stack[--depth];
+			for (Node<V> m = n.right; m != null; m = m.left) stack[depth++] = m;
+			return n;
+		}
+	}
+}
@@ -0,0 +1,55 @@
+/**
+ * A slot in the server's rings: something for the sequencer to do, or something it has done for the fan-out
+ * Slots are allocated once with the ring and refilled by each producer, so passing an edit allocates nothing
+ */
+public class PipelineEvent {
+	public enum Kind {
+		// to the sequencer
+		EDIT,			// apply op to the sketch
+		REPLICATE,		// apply op, as the leader server applied it, to a follower's sketch
+		JOIN,			// start sending comm the world
+		CONTINUE,		// comm's writer has taken the last snapshot chunk; encode the next
+		RESYNC,			// comm's queue dropped ops; start its snapshot over
+		LEAVE,			// comm has hung up
+		VIEW,			// comm is now looking at view
+		TASK,			// run task on the sequencer, e.g. a tick
+		STOP,			// the room is being put away: finish up and stop
+		// to the fan-out
+		BROADCAST,		// queue op, the seq'th edit, to every client looking at its shape
+		JOINED,			// add comm, its snapshot started at last, and queue chunk to it
+		CHUNK,			// queue chunk to comm
+		RESYNCED,		// comm's queue can take ops again; its snapshot restarted at last, queue chunk to it
+		RESUMED,		// add comm, which had everything up to a recent edit, and queue it op, the edits since
+		LEFT,			// stop sending to comm
+		VIEWED,			// comm is now looking at view; queue it op, the shapes coming into view and going out of it, then the VIEW
+		HEARTBEAT,		// nothing has changed, but tell the clients that take SYNC how far they are
+		DROPPED,		// the sketch has been replaced from upstream; hang up on every client, for them to join again
+		STOPPED			// the sequencer has stopped; so does the fan-out
+	}
+
+	Kind kind;
+	Op op;						// EDIT/REPLICATE/BROADCAST op, the snapshot chunk (null if there was nothing to send), or RESUMED's missed edits
+	long seq;					// BROADCAST sequence number
+	Shape before, after;		// BROADCAST op's shape before and after it (null before an ADD or after a DELETE)
+	ClientConnection comm;		// client a JOIN/CONTINUE/RESYNC etc. is for
+	SnapshotStream snapshot;	// and its snapshot
+	OutboundQueue queue;		// RESYNC queue
+	int last;					// JOINED/RESYNCED highest ID the snapshot covers
+	int upTo;					// highest ID in chunk
+	Bounds view;				// VIEW/VIEWED part of the board comm is looking at
+	Runnable task;				// TASK to run
+
+	/**
+	 * Drops references to what the slot last carried, so it doesn't keep them alive
+	 */
+	void clear() {
+		op = null;
+		before = null;
+		after = null;
+		view = null;
+		comm = null;
+		snapshot = null;
+		queue = null;
+		task = null;
+	}
+}
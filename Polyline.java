@@ -1,6 +1,8 @@
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Point;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -12,8 +14,11 @@ import java.util.List;
  */
 
 public class Polyline implements Shape {
-    private ArrayList<Point> linePoints = new ArrayList<>();
+    private ArrayList<Point> linePoints = new ArrayList<>();	// joints, before the offset; the Points are never changed
+    private int offsetX, offsetY;	// how far the whole line has been moved
+    private boolean shared;			// linePoints is also another copy's, so must be copied before adding to it
     private Color color;
+    private Bounds bounds;			// cached getBounds(), or null to work out again
 
 	//Constructor that gets the point with its x and y co-ordinates along with color
     public Polyline(Point p, Color color)
@@ -22,21 +27,46 @@ public class Polyline implements Shape {
         this.color = color;
     }
 
+	/**
+	 * A copy of the other polyline, sharing its points
+	 */
+	private Polyline(Polyline other) {
+		linePoints = other.linePoints;
+		offsetX = other.offsetX;
+		offsetY = other.offsetY;
+		color = other.color;
+		bounds = other.bounds;
+		shared = other.shared = true;
+	}
+
 	public void addPoint(Point p) {
-		linePoints.add(p);
+		if (shared) {
+			linePoints = new ArrayList<>(linePoints);
+			shared = false;
+		}
+		linePoints.add(offsetX == 0 && offsetY == 0 ? p : new Point(p.x - offsetX, p.y - offsetY));
+		if (bounds != null) bounds = bounds.union(Bounds.around(p.x, p.y, 10));
 	}
 
 	/**
-	 * We run through the array list of points and update each point by adding them as a new point with their updates x and y values
+	 * Moves the whole line by adding to its offset, rather than touching every point,
+	 * so moving a long freehand line costs no more than moving a rectangle
 	 * @param dx the x value to increment by
 	 * @param dy the y value to increment by
 	 */
 	@Override
 	public void moveBy(int dx, int dy) {
-        for(int i =0;i<linePoints.size();i++)
-        {
-            linePoints.get(i).translate(dx, dy);
-        }
+		offsetX += dx;
+		offsetY += dy;
+		if (bounds != null) bounds = bounds.translate(dx, dy);
+	}
+
+	/**
+	 * Shares the points with the copy (they are never changed, and addPoint copies them first)
+	 */
+	@Override
+	public Shape copy() {
+		return new Polyline(this);
 	}
 
 	@Override
@@ -58,9 +88,11 @@ public class Polyline implements Shape {
 	 */
 	@Override
 	public boolean contains(int x, int y) {
+		if (!getBounds().contains(x, y)) return false;
+		x -= offsetX;
+		y -= offsetY;
 		for(int i=0;i<linePoints.size()-1;i++)
 		{
-			if (i % 10 == 0) System.out.println(i);
 			Point p1 = linePoints.get(i);
 			Point p2 = linePoints.get(i+1);
 
@@ -75,7 +107,25 @@ public class Polyline implements Shape {
 	}
 
 	/**
-	 * The draw method draws the polyline by first parsing through every pair of points and then drawing a line between each pair
+	 * The box around the joints, grown by the 10 pixels contains allows either side of the line
+	 * Worked out from every joint the first time; after that, grown as each is added
+	 */
+	@Override
+	public Bounds getBounds() {
+		if (bounds != null) return bounds;
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+		for (Point p : linePoints) {
+			minX = Math.min(minX, p.x);
+			minY = Math.min(minY, p.y);
+			maxX = Math.max(maxX, p.x);
+			maxY = Math.max(maxY, p.y);
+		}
+		bounds = new Bounds(minX + offsetX - 10, minY + offsetY - 10, maxX + offsetX + 10, maxY + offsetY + 10);
+		return bounds;
+	}
+
+	/**
+	 * The draw method draws the polyline by first parsing through every pair of points and then drawing a line between each pair, moved by the offset
 	 * @param g
 	 */
 	@Override
@@ -84,36 +134,80 @@ public class Polyline implements Shape {
 		for (int i = 0; i < linePoints.size() - 1; i++) {
 			Point p1 = linePoints.get(i);
 			Point p2 = linePoints.get(i + 1);
-			g.drawLine(p1.x, p1.y, p2.x, p2.y);
+			g.drawLine(p1.x + offsetX, p1.y + offsetY, p2.x + offsetX, p2.y + offsetY);
 		}
 	}
 
+
 	/**
-	 * This method returns a polyline with all the points and its respective color for parsing purposes
-	 * @param shapeInfo
+	 * Returns string with the information required to parse through Polyline. Note: The '|' was added by us as a signpost
 	 * @return
 	 */
-	public static Polyline parseShapeInfo(String[] shapeInfo) {
-		 Polyline polyline = new Polyline(new Point(Integer.parseInt(shapeInfo[0]),
-				 									Integer.parseInt(shapeInfo[1])),
-				 							new Color(Integer.parseInt(shapeInfo[shapeInfo.length - 1])));
-		 for(int i =2;i<shapeInfo.length-1;i+=2) {
-			 polyline.addPoint(new Point(Integer.parseInt(shapeInfo[i]),Integer.parseInt(shapeInfo[i+1])));
-		 }
-		 return polyline;
+	@Override
+	public String toString() {
+		return Shape.toText(this);
 	}
 
 	/**
-	 * Returns string with the information required to parse through Polyline. Note: The '|' was added by us as a signpost
-	 * @return
+	 * Writes every point in turn and then the color, in time linear in the number of points
 	 */
 	@Override
-	public String toString() {
-		String allPoints="";
-		for(Point point:linePoints)
-		{
-			allPoints += point.x+" "+point.y+" ";
+	public void writeText(Appendable out) throws IOException {
+		out.append("polyline |");
+		for (Point point : linePoints) {
+			Shape.appendInt(out, point.x + offsetX); out.append(' ');
+			Shape.appendInt(out, point.y + offsetY); out.append(' ');
+		}
+		Shape.appendInt(out, color.getRGB());
+		out.append('|');
+	}
+
+	@Override
+	public int binarySize() {
+		return 1 + 4 + 4 + linePoints.size() * 8;
+	}
+
+	/**
+	 * Writes the type byte, the color, the number of points and then each point's x and y
+	 */
+	@Override
+	public void writeBinary(ByteBuffer buf) {
+		buf.put(BinaryProtocol.POLYLINE);
+		buf.putInt(color.getRGB());
+		buf.putInt(linePoints.size());
+		for (Point point : linePoints) {
+			buf.putInt(point.x + offsetX);
+			buf.putInt(point.y + offsetY);
+		}
+	}
+
+	/**
+	 * Decodes the "x1 y1 x2 y2 ... color|" part of a text command, straight from the decoder's buffer
+	 * @param d decoder positioned just after the opening '|'
+	 * @return the polyline, or null unless there are whole points (at least one) and then the color
+	 */
+	public static Polyline decode(CommandDecoder d) {
+		int n = d.readInts();
+		if (n < 3 || n % 2 == 0) return null;
+		int[] ints = d.ints();
+		Polyline polyline = new Polyline(new Point(ints[0], ints[1]), new Color(ints[n - 1]));
+		polyline.linePoints.ensureCapacity((n - 1) / 2);
+		for (int i = 2; i < n - 1; i += 2) {
+			polyline.addPoint(new Point(ints[i], ints[i + 1]));
+		}
+		return polyline;
+	}
+
+	/**
+	 * Reads a polyline written by writeBinary, positioned just after the type byte
+	 */
+	public static Polyline readBinary(ByteBuffer buf) {
+		Color color = new Color(buf.getInt());
+		int n = buf.getInt();
+		Polyline polyline = new Polyline(new Point(buf.getInt(), buf.getInt()), color);
+		for (int i = 1; i < n; i++) {
+			polyline.addPoint(new Point(buf.getInt(), buf.getInt()));
 		}
-		return "polyline |"+allPoints+color.getRGB() + "|";
+		return polyline;
 	}
 }
@@ -1,5 +1,7 @@
 import java.awt.Color;
 import java.awt.Graphics;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A rectangle-shaped Shape
@@ -15,6 +17,7 @@ public class Rectangle implements Shape {
 	int x2;
 	int y1;
 	int y2;
+	private Bounds bounds;			// cached getBounds(), or null to work out again
 
 	public Rectangle(int x1, int y1, int x2, int y2, Color color) {
 		setCorners(x1, y1, x2, y2);
@@ -39,6 +42,7 @@ public class Rectangle implements Shape {
 		this.y1 = Math.min(y1, y2);
 		this.x2 = Math.max(x1, x2);
 		this.y2 = Math.max(y1, y2);
+		bounds = null;
 	}
 
 	// TODO: YOUR CODE HERE
@@ -46,6 +50,12 @@ public class Rectangle implements Shape {
 	public void moveBy(int dx, int dy) {
 		x1 += dx; y1 += dy;
 		x2 += dx; y2 += dy;
+		if (bounds != null) bounds = bounds.translate(dx, dy);
+	}
+
+	@Override
+	public Shape copy() {
+		return new Rectangle(x1, y1, x2, y2, color);
 	}
 
 	@Override
@@ -60,11 +70,19 @@ public class Rectangle implements Shape {
 		
 	@Override
 	public boolean contains(int x, int y) {
+		if (!getBounds().contains(x, y)) return false;
 		double a = (x2-x1)/2.0, b = (y2-y1)/2.0;
 		double dx = x - (x1 + a); // horizontal distance from center
 		double dy = y - (y1 + b); // vertical distance from center
 		// Apply the standard geometry formula. (See CRC, 29th edition, p. 178.)
-		return Math.pow(dx / a, 2) + Math.pow(dy / b, 2) <= 1;
+		double u = dx / a, v = dy / b;
+		return u * u + v * v <= 1;
+	}
+
+	@Override
+	public Bounds getBounds() {
+		if (bounds == null) bounds = new Bounds(x1, y1, x2, y2);
+		return bounds;
 	}
 
 	@Override
@@ -72,27 +90,53 @@ public class Rectangle implements Shape {
 		g.setColor(color);
 		g.fillRect(x1,y1,x2-x1,y2-y1);
 	}
-	/**
-	 * This method returns a rectangle with all the points and its respective color for parsing purposes
-	 * @param shapeInfo
-	 * @return
-	 */
-	public static Rectangle parseShapeInfo(String[] shapeInfo) {
-		return new Rectangle(
-				Integer.parseInt(shapeInfo[0]),
-				Integer.parseInt(shapeInfo[1]),
-				Integer.parseInt(shapeInfo[2]),
-				Integer.parseInt(shapeInfo[3]),
-				new Color(Integer.parseInt(shapeInfo[4]))
-		);
+	@Override
+	public void writeText(Appendable out) throws IOException {
+		out.append("rectangle |");
+		Shape.appendInt(out, x1); out.append(' ');
+		Shape.appendInt(out, y1); out.append(' ');
+		Shape.appendInt(out, x2); out.append(' ');
+		Shape.appendInt(out, y2); out.append(' ');
+		Shape.appendInt(out, color.getRGB());
+		out.append('|');
 	}
+
 	/**
 	 * Returns string with the information required to parse through Rectangle. Note: The '|' was added by us as a signpost
 	 * @return
 	 */
+	@Override
 	public String toString() {
-		return "rectangle |"+x1+" "+y1+" "+x2+" "+y2+" "+color.getRGB()+"|";
+		return Shape.toText(this);
 	}
-}
 
+	@Override
+	public int binarySize() {
+		return 1 + 5 * 4;
+	}
 
+	@Override
+	public void writeBinary(ByteBuffer buf) {
+		buf.put(BinaryProtocol.RECTANGLE);
+		buf.putInt(color.getRGB());
+		buf.putInt(x1); buf.putInt(y1);
+		buf.putInt(x2); buf.putInt(y2);
+	}
+
+	/**
+	 * Decodes the "x1 y1 x2 y2 color|" part of a text command, straight from the decoder's buffer
+	 * @param d decoder positioned just after the opening '|'
+	 */
+	public static Rectangle decode(CommandDecoder d) {
+		int x1 = d.nextInt(), y1 = d.nextInt(), x2 = d.nextInt(), y2 = d.nextInt();
+		return new Rectangle(x1, y1, x2, y2, new Color(d.nextInt()));
+	}
+
+	/**
+	 * Reads a rectangle written by writeBinary, positioned just after the type byte
+	 */
+	public static Rectangle readBinary(ByteBuffer buf) {
+		Color color = new Color(buf.getInt());
+		return new Rectangle(buf.getInt(), buf.getInt(), buf.getInt(), buf.getInt(), color);
+	}
+}
@@ -0,0 +1,231 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps a room on a follower server in step with the room of the same name on the leader: connects to the
+ * leader as an editor would (binary, with SYNC markers) and passes every op it is sent on to the room to replicate
+ * Once it has a SYNC, ops are held until the next one, so the room only gets whole runs of the leader's edits,
+ * and when the leader hangs up the link reconnects and resumes from the last SYNC, as an editor does
+ * A relay's link also carries its clients' edits up to the leader (the server upstream of it)
+ */
+public class ReplicaLink implements Runnable {
+	private static final int TIMEOUT = 5000;		// ms to wait for the leader to connect, answer, or send anything (it heartbeats)
+
+	private SketchRoom room;			// following the leader's
+	private String host;				// the leader's
+	private int port;
+	private List<Op> unsynced;			// ops received since the last SYNC, held until the next
+	private int epoch;					// the leader's run of sequence numbers, as of the last SYNC
+	private long lastSeq = -1;			// its sequence number: the room has everything up to there (-1 = none yet)
+	private Thread thread;				// running the link
+	private volatile Socket sock;		// to the leader
+	private OutputStream out;			// to the leader, for edits passed up
+	private ReentrantLock sendLock;		// one edit at a time into out
+	private volatile boolean connected;
+	private volatile long lostAt;		// when the leader was last lost, or when the link started (ms)
+	private volatile boolean stopped;
+
+	/**
+	 * @param room the follower's (or relay's) room
+	 * @param leader host:port of the leader's client port (port 4242 if not given)
+	 */
+	public ReplicaLink(SketchRoom room, String leader) {
+		this.room = room;
+		int colon = leader.lastIndexOf(':');
+		host = colon < 0 ? leader : leader.substring(0, colon);
+		port = colon < 0 ? 4242 : Integer.parseInt(leader.substring(colon + 1));
+		unsynced = new ArrayList<>();
+		sendLock = new ReentrantLock();
+		lostAt = System.currentTimeMillis();
+	}
+
+	public SketchRoom getRoom() {
+		return room;
+	}
+
+	/**
+	 * @return whether the link has the leader
+	 */
+	public boolean isConnected() {
+		return connected;
+	}
+
+	/**
+	 * @return how long the link has been without the leader, in ms (0 if it has it)
+	 */
+	public long getDownMillis() {
+		return connected ? 0 : System.currentTimeMillis() - lostAt;
+	}
+
+	public void start() {
+		thread = new Thread(this, "replica-" + room.getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Passes an edit up to the leader, which will send it back down once applied
+	 * An edit made while the leader is out of reach is dropped, as an editor's would be
+	 */
+	public void send(Op op) {
+		sendLock.lock();
+		try {
+			if (!connected) return;
+			out.write(op.toBinary());
+			out.flush();
+		}
+		catch (IOException e) {
+			// the reader finds out too, and reconnects
+		}
+		finally {
+			sendLock.unlock();
+		}
+	}
+
+	/**
+	 * Hangs up on the leader and waits for the link to finish, after which the room gets nothing more from it
+	 */
+	public void stop() {
+		stopped = true;
+		thread.interrupt();
+		Socket sock = this.sock;
+		if (sock != null) {
+			try {
+				sock.close();
+			}
+			catch (IOException e) {
+				// closing anyway
+			}
+		}
+		try {
+			thread.join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Follows the leader until stopped, reconnecting with a growing delay whenever it is lost
+	 */
+	public void run() {
+		long delay = 250;
+		while (!stopped) {
+			try {
+				connect();
+				delay = 250;
+				listen();
+			}
+			catch (IOException e) {
+				if (!stopped && connected) {
+					System.out.println("replica " + room.getName() + " lost the leader" + (e.getMessage() != null ? ": " + e.getMessage() : ""));
+				}
+			}
+			finally {
+				if (connected) lostAt = System.currentTimeMillis();
+				sendLock.lock();
+				connected = false;
+				sendLock.unlock();
+				unsynced.clear();
+				close();
+			}
+			try {
+				Thread.sleep(delay);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			delay = Math.min(delay * 2, 2000);
+		}
+	}
+
+	/**
+	 * Connects to the leader and asks for the room, in binary with SYNC markers, resuming from the last SYNC if any
+	 * Without one, the room is cleared, as the leader will send its whole sketch
+	 */
+	private void connect() throws IOException {
+		Socket sock = new Socket();
+		this.sock = sock;
+		if (stopped) throw new IOException("stopped");
+		sock.connect(new InetSocketAddress(host, port), TIMEOUT);
+		sock.setSoTimeout(TIMEOUT);
+		sock.setTcpNoDelay(true);
+		Map<String, String> params = new LinkedHashMap<>();
+		params.put("proto", "binary");
+		params.put("room", room.getName());
+		params.put("sync", "true");
+		if (lastSeq >= 0) params.put("resume", epoch + "." + lastSeq);
+		OutputStream out = new BufferedOutputStream(sock.getOutputStream());
+		out.write((Handshake.hello(params) + "\n").getBytes(StandardCharsets.UTF_8));
+		out.flush();
+
+		InputStream in = sock.getInputStream();
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1 && b != '\n') line.write(b);
+		String welcome = line.toString(StandardCharsets.UTF_8);
+		if (!Handshake.is("WELCOME", welcome)) throw new IOException("leader didn't answer HELLO");
+		Map<String, String> agreed = Handshake.parse(welcome);
+		if (!"binary".equals(agreed.get("proto")) || !"true".equals(agreed.get("sync"))
+				|| !room.getName().equals(agreed.get("room"))) {
+			throw new IOException("leader can't replicate room " + room.getName() + ": " + welcome);
+		}
+		if (lastSeq < 0) room.replicate(Op.clear());
+		sendLock.lock();
+		try {
+			this.out = out;
+			connected = true;
+		}
+		finally {
+			sendLock.unlock();
+		}
+		System.out.println("replica " + room.getName() + " following " + host + ":" + port
+				+ (lastSeq >= 0 ? " from seq " + lastSeq : ""));
+	}
+
+	/**
+	 * Passes on what the leader sends until it hangs up (or goes quiet for longer than it should)
+	 */
+	private void listen() throws IOException {
+		BinaryProtocol.Reader reader = new BinaryProtocol.Reader(new BufferedInputStream(sock.getInputStream(), 64 * 1024));
+		while (!stopped) {
+			Op op = reader.read();
+			if (op == null) continue;
+			switch (op.getType()) {
+				case SYNC:
+					for (Op held : unsynced) room.replicate(held);
+					unsynced.clear();
+					room.replicate(op);
+					epoch = op.getEpoch();
+					lastSeq = op.getSeq();
+					break;
+				case CLEAR:
+					// couldn't resume, so the whole sketch follows
+					unsynced.clear();
+					lastSeq = -1;
+					room.replicate(op);
+					break;
+				default:
+					// nothing to resume from yet, so the whole sketch would be sent again anyway
+					if (lastSeq < 0) room.replicate(op);
+					else unsynced.add(op);
+			}
+		}
+	}
+
+	private void close() {
+		try {
+			sock.close();
+		}
+		catch (IOException e) {
+			// done with it anyway
+		}
+	}
+}
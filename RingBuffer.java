@@ -0,0 +1,136 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Fixed-size ring of pre-allocated slots passed from any number of producers to a fixed set of readers
+ * A producer claims a sequence number with next(), fills in that slot and publishes it; every reader
+ * sees every slot, in sequence order, and a slot is only reused once all readers are past it
+ * (so producers wait when the slowest reader is a whole ring behind)
+ * No locks: claiming is one atomic increment, and a reader with nothing to do parks until a publish wakes it
+ */
+public class RingBuffer<T> {
+	private final Object[] slots;				// the pre-allocated entries
+	private final int mask;						// slots.length - 1 (a power of two)
+	private final AtomicLong claimed;			// next sequence number to hand out
+	private final AtomicLongArray published;	// per slot, the sequence number last published there
+	private final List<Reader> readers;			// everyone consuming the ring
+
+	/**
+	 * @param size number of slots, rounded up to a power of two
+	 * @param factory makes each slot's entry, once, up front
+	 */
+	public RingBuffer(int size, Supplier<T> factory) {
+		int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+		slots = new Object[capacity];
+		for (int i = 0; i < capacity; i++) slots[i] = factory.get();
+		mask = capacity - 1;
+		claimed = new AtomicLong();
+		published = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) published.set(i, -1);
+		readers = new ArrayList<>();
+	}
+
+	/**
+	 * Adds a reader, starting at the beginning; all readers must be added before anything is published
+	 */
+	public Reader newReader() {
+		Reader reader = new Reader();
+		readers.add(reader);
+		return reader;
+	}
+
+	/**
+	 * Claims the next slot, waiting if every slot is still in use by some reader
+	 * @return its sequence number, to fill get(seq) and then publish(seq)
+	 */
+	public long next() {
+		long seq = claimed.getAndIncrement();
+		long wrap = seq - slots.length;
+		int spins = 0;
+		while (wrap >= minRead()) {
+			if (++spins < 100) Thread.onSpinWait();
+			else LockSupport.parkNanos(10000);
+		}
+		return seq;
+	}
+
+	/**
+	 * @return number of slots
+	 */
+	public int size() {
+		return slots.length;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T get(long seq) {
+		return (T) slots[(int) seq & mask];
+	}
+
+	/**
+	 * Makes a filled slot visible to the readers, waking any that are waiting
+	 */
+	public void publish(long seq) {
+		published.set((int) seq & mask, seq);
+		for (Reader reader : readers) {
+			if (reader.parked) LockSupport.unpark(reader.thread);
+		}
+	}
+
+	/**
+	 * @return how far the slowest reader has got (everything before it is free)
+	 */
+	private long minRead() {
+		long min = Long.MAX_VALUE;
+		for (Reader reader : readers) min = Math.min(min, reader.next);
+		return min;
+	}
+
+	/**
+	 * One consumer's position in the ring; only used from that consumer's thread
+	 */
+	public class Reader {
+		private volatile long next;				// first sequence number not yet released
+		private volatile boolean parked;		// waiting for a publish
+		private Thread thread;					// the consumer, to be woken
+
+		/**
+		 * Waits until the next slot is published
+		 * @return end (exclusive) of the run of published slots from the reader's position, to be read with get
+		 */
+		public long waitFor() {
+			long seq = next;
+			int spins = 0;
+			while (published.get((int) seq & mask) != seq) {
+				if (++spins < 100) {
+					Thread.onSpinWait();
+					continue;
+				}
+				thread = Thread.currentThread();
+				parked = true;
+				if (published.get((int) seq & mask) != seq) LockSupport.park(this);
+				parked = false;
+			}
+			long end = seq + 1;
+			while (end < seq + slots.length && published.get((int) end & mask) == end) end++;
+			return end;
+		}
+
+		/**
+		 * @return the reader's position: the first slot waitFor will return
+		 */
+		public long position() {
+			return next;
+		}
+
+		/**
+		 * Hands the slots before end back to the producers
+		 */
+		public void release(long end) {
+			next = end;
+		}
+	}
+}
@@ -1,5 +1,7 @@
 import java.awt.Color;
 import java.awt.Graphics;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A line segment-shaped Shape
@@ -11,6 +13,7 @@ import java.awt.Graphics;
 public class Segment implements Shape {
 	private int x1, y1, x2, y2;		// two endpoints
 	private Color color;
+	private Bounds bounds;			// cached getBounds(), or null to work out again
 
 	/**
 	 * Initial 0-length segment at a point
@@ -35,6 +38,7 @@ public class Segment implements Shape {
 	 */
 	public void setStart(int x1, int y1) {
 		this.x1 = x1; this.y1 = y1;
+		bounds = null;
 	}
 	
 	/**
@@ -42,12 +46,19 @@ public class Segment implements Shape {
 	 */
 	public void setEnd(int x2, int y2) {
 		this.x2 = x2; this.y2 = y2;
+		bounds = null;
 	}
 	
 	@Override
 	public void moveBy(int dx, int dy) {
 		x1 += dx; y1 += dy;
 		x2 += dx; y2 += dy;
+		if (bounds != null) bounds = bounds.translate(dx, dy);
+	}
+
+	@Override
+	public Shape copy() {
+		return new Segment(x1, y1, x2, y2, color);
 	}
 
 	@Override
@@ -62,9 +73,19 @@ public class Segment implements Shape {
 	
 	@Override
 	public boolean contains(int x, int y) {
+		if (!getBounds().contains(x, y)) return false;
 		return pointToSegmentDistance(x, y, x1, y1, x2, y2) <= 3;
 	}
 
+	/**
+	 * The box around the endpoints, grown by the 3 pixels contains allows either side of the line
+	 */
+	@Override
+	public Bounds getBounds() {
+		if (bounds == null) bounds = new Bounds(Math.min(x1, x2) - 3, Math.min(y1, y2) - 3, Math.max(x1, x2) + 3, Math.max(y1, y2) + 3);
+		return bounds;
+	}
+
 	/**
 	 * Helper method to compute the distance between a point (x,y) and a segment (x1,y1)-(x2,y2)
 	 * http://stackoverflow.com/questions/849211/shortest-distance-between-a-point-and-a-line-segment
@@ -93,22 +114,49 @@ public class Segment implements Shape {
 		g.setColor(color);
 		g.drawLine(x1, y1, x2, y2);
 	}
-	/**
-	 * This method returns a segment with all the points and its respective color for parsing purposes
-	 * @param shapeInfo
-	 * @return
-	 */
-	public static Segment parseShapeInfo(String[] shapeInfo) {
-		return new Segment(
-				Integer.parseInt(shapeInfo[0]),
-				Integer.parseInt(shapeInfo[1]),
-				Integer.parseInt(shapeInfo[2]),
-				Integer.parseInt(shapeInfo[3]),
-				new Color(Integer.parseInt(shapeInfo[4]))
-		);
+	@Override
+	public void writeText(Appendable out) throws IOException {
+		out.append("segment |");
+		Shape.appendInt(out, x1); out.append(' ');
+		Shape.appendInt(out, y1); out.append(' ');
+		Shape.appendInt(out, x2); out.append(' ');
+		Shape.appendInt(out, y2); out.append(' ');
+		Shape.appendInt(out, color.getRGB());
+		out.append('|');
 	}
+
 	@Override
 	public String toString() {
-		return "segment |"+x1+" "+y1+" "+x2+" "+y2+" "+color.getRGB() + "|";
+		return Shape.toText(this);
+	}
+
+	@Override
+	public int binarySize() {
+		return 1 + 5 * 4;
+	}
+
+	@Override
+	public void writeBinary(ByteBuffer buf) {
+		buf.put(BinaryProtocol.SEGMENT);
+		buf.putInt(color.getRGB());
+		buf.putInt(x1); buf.putInt(y1);
+		buf.putInt(x2); buf.putInt(y2);
+	}
+
+	/**
+	 * Decodes the "x1 y1 x2 y2 color|" part of a text command, straight from the decoder's buffer
+	 * @param d decoder positioned just after the opening '|'
+	 */
+	public static Segment decode(CommandDecoder d) {
+		int x1 = d.nextInt(), y1 = d.nextInt(), x2 = d.nextInt(), y2 = d.nextInt();
+		return new Segment(x1, y1, x2, y2, new Color(d.nextInt()));
+	}
+
+	/**
+	 * Reads a segment written by writeBinary, positioned just after the type byte
+	 */
+	public static Segment readBinary(ByteBuffer buf) {
+		Color color = new Color(buf.getInt());
+		return new Segment(buf.getInt(), buf.getInt(), buf.getInt(), buf.getInt(), color);
 	}
 }
@@ -1,5 +1,8 @@
 import java.awt.Color;
 import java.awt.Graphics;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 
 /**
  * A geometric entity with a color
@@ -16,9 +19,17 @@ public interface Shape {
 
 	/**
 	 * Whether or not the point is inside the shape
+	 * (a point outside its bounds is turned down before any geometry is worked out)
 	 */
 	public boolean contains(int x, int y);
 
+	/**
+	 * @return the box the shape is drawn in, which takes in every point it contains
+	 * Kept from one call to the next, and moved along with the shape rather than worked out again;
+	 * a shape in a sketch may be asked from several threads at once, which at worst both work it out
+	 */
+	public Bounds getBounds();
+
 	/**
 	 * @return The shape's color
 	 */
@@ -29,9 +40,65 @@ public interface Shape {
 	 */
 	public void setColor(Color color);
 	
+	/**
+	 * @return a shape just like this one that can be changed without changing this one
+	 * (a sketch moves or recolors a copy, as the shapes in it never change)
+	 */
+	public Shape copy();
+
 	/**
 	 * Draws the shape
 	 */
 	public void draw(Graphics g);
 
+	/**
+	 * @return how many bytes writeBinary will write
+	 */
+	public int binarySize();
+
+	/**
+	 * Writes the shape in the binary protocol: a type byte, the rgb color, then the coordinates
+	 * (the shape's readBinary reads it back, after Sketch.readBinaryShape has consumed the type byte)
+	 */
+	public void writeBinary(ByteBuffer buf);
+
+	/**
+	 * Writes the shape in the text protocol (e.g. "ellipse |x1 y1 x2 y2 color|") straight into out,
+	 * so long shapes and whole sketches can be encoded without building a String per shape
+	 */
+	public void writeText(Appendable out) throws IOException;
+
+	/**
+	 * @return the shape as writeText writes it, for toString
+	 */
+	public static String toText(Shape shape) {
+		StringBuilder sb = new StringBuilder(shape.binarySize() * 2);
+		try {
+			shape.writeText(sb);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);		// StringBuilder doesn't throw
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Appends a decimal int to out without making a String of it
+	 */
+	public static void appendInt(Appendable out, int value) throws IOException {
+		if (out instanceof StringBuilder) {
+			((StringBuilder) out).append(value);
+			return;
+		}
+		long v = value;
+		if (v < 0) {
+			out.append('-');
+			v = -v;
+		}
+		long place = 1;
+		while (place * 10 <= v) place *= 10;
+		for (; place > 0; place /= 10) {
+			out.append((char) ('0' + (v / place) % 10));
+		}
+	}
 }
@@ -1,17 +1,40 @@
+import java.awt.Color;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.stream.Stream;
 
+/**
+ * The shapes in a sketch, by ID
+ * Each change publishes a new version of the whole sketch: a persistent map that shares all but a few
+ * nodes with the last one, holding shapes that are never changed once in it (a MOVE or RECOLOR puts
+ * in a moved or recolored copy instead), so any number of readers can take a consistent version
+ * with snapshot() at any time, without locks, while the one writer carries on
+ * Only one thread may change a sketch: the server's sequencer, or the editor's Swing thread
+ */
 public class Sketch {
     int currentId;
 
+    private volatile PersistentIntMap<Shape> shapes;        // the current version
+    private SpatialIndex index;                             // the current version's shapes by where they are (null until first asked)
+
+    /**
+     * returns the current version of the sketch, which stays as it is whatever happens after
+     * @return map of ID to shape
+     */
+    public PersistentIntMap<Shape> snapshot() {
+        return shapes;
+    }
+
     /**
      * returns list of shapes ordered by ID
      * @return list of the shapes
      */
     public List<Shape> getShapesOrdered() {
-        return shapes.navigableKeySet().stream().map((Integer key) -> shapes.get(key)).toList();
+        PersistentIntMap<Shape> version = shapes;
+        List<Shape> ordered = new ArrayList<>(version.size());
+        for (PersistentIntMap.Node<Shape> entry : version.entries()) ordered.add(entry.getValue());
+        return ordered;
     }
 
     /**
@@ -19,7 +42,84 @@ public class Sketch {
      * @return list of integer IDs
      */
     public List<Integer> getShapesIdsOrdered() {
-        return shapes.navigableKeySet().stream().toList();
+        PersistentIntMap<Shape> version = shapes;
+        List<Integer> ids = new ArrayList<>(version.size());
+        for (PersistentIntMap.Node<Shape> entry : version.entries()) ids.add(entry.getKey());
+        return ids;
+    }
+
+    /**
+     * returns the shapes with IDs in (after, upTo], in ID order, from the current version
+     * @param after ID to start after
+     * @param upTo last ID to include
+     * @return entries of ID and shape
+     */
+    public Iterable<PersistentIntMap.Node<Shape>> getShapesBetween(int after, int upTo) {
+        return shapes.between(after, upTo);
+    }
+
+    /**
+     * returns the IDs of the shapes whose bounds reach into an area, from the current version
+     * (only for the thread that changes the sketch, which keeps the index in step)
+     * @param area part of the board
+     * @return IDs in ascending order
+     */
+    public int[] getShapesIn(Bounds area) {
+        PersistentIntMap<Shape> version = shapes;
+        int[] candidates = index().query(area);
+        int found = 0;
+        for (int id : candidates) {
+            if (version.get(id).getBounds().intersects(area)) candidates[found++] = id;
+        }
+        return Arrays.copyOf(candidates, found);
+    }
+
+    /**
+     * returns the ID of the topmost (highest ID) shape containing a point, checking only the shapes whose
+     * bounds are near it, from the top down, and stopping at the first that contains it
+     * (each turns down a point outside its bounds before any geometry)
+     * (only for the thread that changes the sketch, as getShapesIn)
+     * @return ID of the shape, or -1 if there is none there
+     */
+    public int getShapeAt(int x, int y) {
+        PersistentIntMap<Shape> version = shapes;
+        int[] candidates = index().query(new Bounds(x, y, x, y));
+        for (int i = candidates.length - 1; i >= 0; i--) {
+            Shape shape = version.get(candidates[i]);
+            if (shape.contains(x, y)) return candidates[i];
+        }
+        return -1;
+    }
+
+    /**
+     * returns the index of the current version's shapes, building it the first time it is needed
+     */
+    private SpatialIndex index() {
+        if (index == null) {
+            index = new SpatialIndex();
+            for (PersistentIntMap.Node<Shape> entry : shapes.entries()) index.add(entry.getKey(), entry.getValue().getBounds());
+        }
+        return index;
+    }
+
+    /**
+     * keeps the index, if there is one, in step with a shape being replaced
+     * @param id ID of the shape
+     * @param old shape that was there, or null
+     * @param shape shape there now, or null
+     */
+    private void reindex(int id, Shape old, Shape shape) {
+        if (index == null) return;
+        if (old != null) index.remove(id, old.getBounds());
+        if (shape != null) index.add(id, shape.getBounds());
+    }
+
+    /**
+     * returns the highest ID the server has handed out so far
+     * @return last ID, or 0 if none
+     */
+    public int getLastId() {
+        return currentId;
     }
 
     /**
@@ -33,22 +133,76 @@ public class Sketch {
 
     /**
      * should only be called by server, adds a new shape and returns its assigned ID
-     * @param shape shape to add
+     * @param shape shape to add, which must not be changed from now on
      * @return new ID
      */
     public int serverAddShape(Shape shape) {
        int id = ++currentId;
-       shapes.put(id, shape);
+       shapes = shapes.put(id, shape);
+       reindex(id, null, shape);
        return id;
     }
 
     /**
      * should only be called by client, adds a new shape with an existing ID
      * @param id ID of the shape
-     * @param shape shape to add
+     * @param shape shape to add, which must not be changed from now on
      */
     public void clientAddShape(int id, Shape shape) {
-        shapes.put(id, shape);
+        reindex(id, shapes.get(id), shape);
+        shapes = shapes.put(id, shape);
+    }
+
+    /**
+     * puts back a shape with an ID the server handed out before (e.g. replaying its log),
+     * making sure IDs handed out from now on come after it
+     * @param id ID of the shape
+     * @param shape shape to add, which must not be changed from now on
+     */
+    public void restoreShape(int id, Shape shape) {
+        reindex(id, shapes.get(id), shape);
+        shapes = shapes.put(id, shape);
+        currentId = Math.max(currentId, id);
+    }
+
+    /**
+     * replaces the whole sketch, e.g. with one loaded from a checkpoint
+     * @param shapes the shapes by ID, which must not be changed from now on
+     * @param lastId highest ID handed out so far
+     */
+    public void restore(PersistentIntMap<Shape> shapes, int lastId) {
+        this.shapes = shapes;
+        currentId = lastId;
+        index = null;
+    }
+
+    /**
+     * moves a shape, by replacing it with a moved copy
+     * @param id ID of the shape
+     * @return the moved shape, or null if there is no such shape
+     */
+    public Shape moveShape(int id, int dx, int dy) {
+        Shape shape = shapes.get(id);
+        if (shape == null) return null;
+        Shape moved = shape.copy();
+        moved.moveBy(dx, dy);
+        shapes = shapes.put(id, moved);
+        reindex(id, shape, moved);
+        return moved;
+    }
+
+    /**
+     * recolors a shape, by replacing it with a recolored copy
+     * @param id ID of the shape
+     * @return the recolored shape, or null if there is no such shape
+     */
+    public Shape recolorShape(int id, Color color) {
+        Shape shape = shapes.get(id);
+        if (shape == null) return null;
+        Shape recolored = shape.copy();
+        recolored.setColor(color);
+        shapes = shapes.put(id, recolored);
+        return recolored;
     }
 
     /**
@@ -56,35 +210,62 @@ public class Sketch {
      * @param id ID to delete
      */
     public void deleteShape(int id) {
-        shapes.remove(id);
+        reindex(id, shapes.get(id), null);
+        shapes = shapes.remove(id);
     }
 
-    private TreeMap<Integer, Shape> shapes;
+    /**
+     * removes every shape, e.g. before the server resends the whole sketch
+     */
+    public void clear() {
+        shapes = PersistentIntMap.empty();
+        if (index != null) index.clear();
+    }
+
+    /**
+     * decodes "type |info|" from a text command, dispatching on the type to the corresponding shape.decode
+     * @param d decoder positioned at the shape type
+     * @return new Shape, or null for an unknown type or a malformed polyline
+     */
+    public static Shape decodeShape(CommandDecoder d) {
+        byte type = d.shapeType();
+        if (!d.skipPast('|')) return null;
+        switch (type) {
+            case BinaryProtocol.ELLIPSE:
+                return Ellipse.decode(d);
+            case BinaryProtocol.RECTANGLE:
+                return Rectangle.decode(d);
+            case BinaryProtocol.POLYLINE:
+                return Polyline.decode(d);
+            case BinaryProtocol.SEGMENT:
+                return Segment.decode(d);
+        }
+
+        return null;
+    }
 
     /**
-     * parses a CREATE command and returns a Shape. Internally calls corresponding shape.parseShapeInfo
-     * @param command command to parse
+     * reads a shape in the binary protocol, dispatching on its type byte to the corresponding shape.readBinary
+     * @param buf buffer positioned at the type byte
      * @return new Shape
      */
-    public static Shape parseCreateCommand(String command) {
-        String[] parts = command.split(" ");
-        String[] shapeInfo = command.split("\\|")[1].split(" ");
-        switch (parts[1]) {
-            case "ellipse":
-                return Ellipse.parseShapeInfo(shapeInfo);
-            case "rectangle":
-                return Rectangle.parseShapeInfo(shapeInfo);
-            case "polyline":
-                return Polyline.parseShapeInfo(shapeInfo);
-            case "segment":
-                return Segment.parseShapeInfo(shapeInfo);
+    public static Shape readBinaryShape(ByteBuffer buf) {
+        switch (buf.get()) {
+            case BinaryProtocol.ELLIPSE:
+                return Ellipse.readBinary(buf);
+            case BinaryProtocol.RECTANGLE:
+                return Rectangle.readBinary(buf);
+            case BinaryProtocol.POLYLINE:
+                return Polyline.readBinary(buf);
+            case BinaryProtocol.SEGMENT:
+                return Segment.readBinary(buf);
         }
 
         return null;
     }
 
     public Sketch() {
-        shapes = new TreeMap<>();
+        shapes = PersistentIntMap.empty();
         currentId = 0;
     }
 
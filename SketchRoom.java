@@ -0,0 +1,970 @@
+import java.awt.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One sketch on the server, with the clients drawing on it
+ * Has its own pipeline: client threads publish edits into the room's ring, its sequencer applies them to
+ * its sketch and its fan-out stages pass them to its clients, so rooms share nothing but the sockets' threads
+ * A room nobody is in can be closed, saving its sketch to disk, and opened again from there later
+ * Every edit broadcast has a sequence number (the sketch's version), and the latest are kept in a window,
+ * so a client that reconnects soon enough is sent just the edits it missed rather than the whole sketch
+ * A room can instead follow the same room on a leader server, applying the leader's edits as the leader
+ * numbered them, so that if it takes over, the leader's clients can resume in it
+ * A relay's room follows the room upstream in the same way while serving clients of its own, and passes
+ * their edits upstream rather than applying them, so they come back down in the upstream room's order
+ * A client looking at only part of the board is only sent the shapes there, found through the sketch's spatial index
+ */
+public class SketchRoom {
+	private static final int SHAPE_OVERHEAD = 64;		// heap a shape takes beyond its encoding: map node and object headers, roughly
+
+	private String name;								// what clients ask for the room by
+	private List<ClientConnection> comms;				// all the room's connections with clients
+	private Sketch sketch;								// the state of the world
+	private RingBuffer<PipelineEvent> edits;			// edits and requests from every client, to the sequencer
+	private RingBuffer<PipelineEvent> fanout;			// what the sequencer has done, to the fan-out stages
+	private RingBuffer<PipelineEvent>.Reader sequencerReader;	// the sequencer's place in edits
+	private List<RingBuffer<PipelineEvent>.Reader> fanoutReaders;	// each fan-out stage's place in fanout
+	private List<List<ClientConnection>> shards;		// clients served by each fan-out stage
+	private List<Thread> threads;						// the sequencer and fan-out stages
+	private boolean stopped;							// the sequencer has been told to stop (sequencer only)
+	private volatile boolean closed;					// the room has been put away
+	private AtomicInteger users;						// clients that have entered and not yet left
+	private volatile long lastUsed;						// when a client last entered or left (ms)
+	private int nextShard;								// round-robin position for handing clients to fan-out stages (sequencer only)
+	private int snapshotChunkBytes;						// how much of the world is encoded and queued to a joining client at a time
+	private SnapshotCache snapshotCache;				// chunks encoded at the current version, shared by clients joining at it
+	private volatile EditLog log;						// where applied edits are saved, if anywhere (set by the sequencer, read by the fan-out)
+	private long version;								// how many edits have been made to the sketch, and so the last one's sequence number
+	private long checkpointEvery;						// edits between checkpoints of the logged sketch
+	private long checkpointStarted;						// version the last checkpoint was taken at
+	private volatile boolean checkpointing;				// a checkpoint is being written out
+	private Thread checkpointWriter;					// writing the latest one
+	private Thread logCloser;							// shutdown hook closing the log
+	private Path page;									// where the sketch is saved while the room is closed, if there is no log
+	private int epoch;									// tells this run of sequence numbers from any earlier one's
+	private Op[] window;								// the latest edits broadcast, the seq'th at seq % length (sequencer only)
+	private Shape[] windowBefore, windowAfter;			// and the shape each was about, before and after it
+	private long windowStart;							// version when the window started filling
+	private boolean replicaSynced;						// following: the sketch is the leader's as of a SYNC, so its edits are numbered (sequencer only)
+	private volatile long replicatedSeq = -1;			// following: the leader's sequence number the sketch has reached (-1 = none yet)
+	private volatile long replicatedTime;				// following: when the leader sent the SYNC for it, by the leader's clock
+	private ReplicaLink upstream;						// relaying: the link to the room upstream, which edits are passed to
+	private Map<ClientConnection, SnapshotStream> waiting;	// relaying: clients to join once the upstream room's sketch is here (sequencer only)
+	private long tickMillis;							// MOVE/RECOLOR apply period (0 = apply each one as it comes)
+	private LinkedHashMap<Integer, PendingUpdate> pending;	// MOVE/RECOLORs received during the current tick, by shape id
+	private PersistentIntMap<Shape> sized;				// version of the sketch residentBytes was worked out for (sweeper only)
+	private long residentBytes;							// roughly how much heap that version takes (sweeper only)
+
+	/**
+	 * Starts the room's sequencer and fan-out stages; with a log, first rebuilds the sketch from it,
+	 * and otherwise from the page it was saved to when last closed, if any
+	 * @param log where to save the room's edits, not yet replayed, or null
+	 * @param page where to save the sketch when the room is closed if there is no log, or null
+	 */
+	public SketchRoom(String name, Options options, EditLog log, Path page) throws IOException {
+		this.name = name;
+		this.log = log;
+		this.page = page;
+		sketch = new Sketch();
+		comms = new CopyOnWriteArrayList<ClientConnection>();
+		users = new AtomicInteger();
+		lastUsed = System.currentTimeMillis();
+		snapshotChunkBytes = options.getInt("snapshot-chunk", 64 * 1024);
+		tickMillis = options.getLong("tick", 0);
+		pending = new LinkedHashMap<>();
+		waiting = new LinkedHashMap<>();
+		snapshotCache = new SnapshotCache();
+		epoch = new Random().nextInt();
+		window = new Op[Math.max(1, options.getInt("replay-window", 4096))];
+		windowBefore = new Shape[window.length];
+		windowAfter = new Shape[window.length];
+		checkpointEvery = options.getLong("checkpoint-every", 1000000);
+		if (log != null) {
+			version = log.replay(sketch);
+			checkpointStarted = log.getCheckpointed();
+			log.start();
+			logCloser = new Thread(log::close, "sketch-log-close-" + name);
+			Runtime.getRuntime().addShutdownHook(logCloser);
+		}
+		else if (page != null && Files.exists(page)) {
+			Checkpoint saved = Checkpoint.read(page);
+			sketch.restore(saved.getShapes(), saved.getLastId());
+			version = saved.getVersion();
+			// kept, as without a log it is the only copy until close() writes over it
+		}
+		windowStart = version;
+		startPipeline(options.getInt("ring", 8192), options.getInt("fanout", 1));
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Sketch getSketch() {
+		return sketch;
+	}
+
+	/**
+	 * Counts a client in, before it joins; a room with anyone in it is never closed
+	 * @return false if the room is being closed, or has been, in which case nobody can enter it
+	 */
+	public boolean enter() {
+		while (true) {
+			int n = users.get();
+			if (n < 0) return false;
+			if (users.compareAndSet(n, n + 1)) break;
+		}
+		lastUsed = System.currentTimeMillis();
+		return true;
+	}
+
+	/**
+	 * Counts out again someone in the room other than a client, e.g. the link following a leader
+	 * (a client leaves through removeCommunicator)
+	 */
+	public void leave() {
+		users.decrementAndGet();
+		lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return how many clients are in the room (-1 once it is being closed)
+	 */
+	public int getUsers() {
+		return users.get();
+	}
+
+	/**
+	 * Roughly how much heap the room's sketch takes, worked out again only once it has changed, so an idle room
+	 * costs nothing to ask; for the server's room sweeps
+	 */
+	public long getResidentBytes() {
+		PersistentIntMap<Shape> shapes = sketch.snapshot();
+		if (shapes != sized) {
+			long bytes = 0;
+			for (PersistentIntMap.Node<Shape> entry : shapes.entries()) bytes += SHAPE_OVERHEAD + entry.getValue().binarySize();
+			residentBytes = bytes;
+			sized = shapes;
+		}
+		return residentBytes;
+	}
+
+	/**
+	 * @return when a client last entered or left the room, in ms
+	 */
+	public long getLastUsed() {
+		return lastUsed;
+	}
+
+	/**
+	 * @return the leader's sequence number a following room has reached, as of the leader's last SYNC (-1 = none yet)
+	 */
+	public long getReplicatedSeq() {
+		return replicatedSeq;
+	}
+
+	/**
+	 * @return when the leader sent that SYNC, in ms by the leader's clock; so now less this is how far behind
+	 * the room is (the leader sends one at least every heartbeat, even with nothing to replicate)
+	 */
+	public long getReplicatedTime() {
+		return replicatedTime;
+	}
+
+	/**
+	 * Makes the room a relay of the room upstream: from now on clients' edits are passed to the link, and
+	 * clients that join are kept waiting until the link has brought the upstream room's sketch
+	 * The room stops the link when it is closed
+	 * @param link not yet started, and following this room
+	 */
+	public void relayFrom(ReplicaLink link) {
+		upstream = link;
+		link.start();
+	}
+
+	/**
+	 * Starts saving the room's edits to the log, for a room that was following a leader, and so had no log
+	 * of its own, on taking over from it: the log starts over from the replicated sketch, or if the room never
+	 * caught up with the leader, the sketch is rebuilt from the log as usual instead
+	 */
+	public void startLog(EditLog log) throws IOException {
+		FutureTask<Void> started = new FutureTask<>(() -> {
+			if (replicatedSeq >= 0) {
+				log.startAt(sketch.snapshot(), version, sketch.getLastId());
+			}
+			else {
+				sketch.restore(PersistentIntMap.empty(), 0);
+				version = log.replay(sketch);
+				windowStart = version;
+				emitHeartbeat();
+			}
+			log.start();
+			this.log = log;
+			checkpointStarted = log.getCheckpointed();
+			return null;
+		});
+		runOnSequencer(started);
+		try {
+			started.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted starting the log for room " + name);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+		logCloser = new Thread(log::close, "sketch-log-close-" + name);
+		Runtime.getRuntime().addShutdownHook(logCloser);
+	}
+
+	/**
+	 * Puts the room away: stops its sequencer and fan-out stages, then saves the sketch, as a checkpoint in its
+	 * log or else to its page, so a new SketchRoom can pick up where this one left off
+	 * Only if nobody is in the room, and from then on nobody can enter it
+	 * If the sketch can't be saved the room starts up again, as it was, and the error is passed on
+	 * @return whether it was closed, which it isn't if anyone is in it
+	 */
+	public boolean close() throws IOException {
+		if (!users.compareAndSet(0, -1)) return false;
+		closed = true;
+		if (upstream != null) upstream.stop();
+		request(PipelineEvent.Kind.STOP, null, null, null);
+		join(threads);
+		PersistentIntMap<Shape> shapes = sketch.snapshot();
+		try {
+			if (log != null) {
+				if (checkpointWriter != null) join(Collections.singletonList(checkpointWriter));
+				if (version != log.getCheckpointed() && log.roll(version)) {
+					log.checkpoint(shapes, version, sketch.getLastId());
+				}
+			}
+			else if (page != null) {
+				Checkpoint.write(page, shapes, version, sketch.getLastId());
+			}
+		}
+		catch (IOException e) {
+			closed = false;
+			lastUsed = System.currentTimeMillis();		// so it isn't tried again straight away
+			startPipeline(edits.size(), shards.size());
+			users.set(0);
+			throw e;
+		}
+		if (log != null) {
+			log.close();
+			try {
+				Runtime.getRuntime().removeShutdownHook(logCloser);
+			}
+			catch (IllegalStateException e) {
+				// already shutting down
+			}
+		}
+		return true;
+	}
+
+	private static void join(List<Thread> threads) {
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * What has happened to one shape so far this tick
+	 */
+	private static class PendingUpdate {
+		boolean moved;
+		int dx, dy;				// sum of all the MOVEs
+		Color color;			// the last RECOLOR, or null if none
+	}
+
+	/**
+	 * Adds a new client and starts sending it the current state of the world, a chunk at a time
+	 * The sequencer takes the snapshot between two edits, and the client's fan-out stage starts
+	 * sending it edits right after that point, so the client gets every op after that state and none before
+	 * @param snapshot the client's stream, which its writer passes to continueSnapshot as each chunk goes out
+	 */
+	public void join(ClientConnection comm, SnapshotStream snapshot) {
+		request(PipelineEvent.Kind.JOIN, comm, snapshot, null);
+	}
+
+	/**
+	 * Called by a client's writer once it has taken the snapshot's latest chunk off its queue: has the next one queued
+	 * So only about one chunk per joining client is ever held in memory, however big the sketch
+	 */
+	public void continueSnapshot(ClientConnection comm, SnapshotStream snapshot) {
+		request(PipelineEvent.Kind.CONTINUE, comm, snapshot, null);
+	}
+
+	/**
+	 * Called by a client's writer when it reaches the RESYNC marker its queue put in place of dropped ops
+	 * Has the client's snapshot started over, its first chunk queued once the queue takes ops again
+	 * @return op telling the client to throw away its sketch, to be written before that chunk
+	 */
+	public Op resyncSnapshot(ClientConnection comm, OutboundQueue queue, SnapshotStream snapshot) {
+		request(PipelineEvent.Kind.RESYNC, comm, snapshot, queue);
+		return Op.clear();
+	}
+
+	/**
+	 * parses an incoming text command and handles it
+	 * @param from the client it came from
+	 * @param command incomming command to parse and handle
+	 */
+	public void handleEdit(ClientConnection from, String command) {
+		Op edit = Op.parse(command);
+		if (edit != null) handleEdit(from, edit);
+	}
+
+	/**
+	 * Hands an incoming edit, whichever protocol it came in, to the sequencer
+	 * The edit has already been parsed on the client's own thread; the sequencer alone changes the sketch,
+	 * so there is always a single state in it which represents ground truth, without a lock on this path
+	 * A VIEW is the client's own business, so even a relay handles it here rather than passing it upstream
+	 * @param from the client it came from
+	 * @param edit incomming CREATE, DELETE, MOVE or RECOLOR, or VIEW
+	 */
+	public void handleEdit(ClientConnection from, Op edit) {
+		if (edit.getType() == Op.Type.VIEW) {
+			long seq = edits.next();
+			PipelineEvent event = edits.get(seq);
+			event.kind = PipelineEvent.Kind.VIEW;
+			event.comm = from;
+			event.snapshot = from.getSnapshot();
+			event.view = edit.getArea();
+			edits.publish(seq);
+		}
+		else if (upstream != null) upstream.send(edit);
+		else submit(PipelineEvent.Kind.EDIT, edit);
+	}
+
+	/**
+	 * Hands an op from the leader's stream to the sequencer, for a room following the same room on another server
+	 * The leader's ADDs keep their IDs; until a SYNC says which of the leader's sequence numbers the sketch is at,
+	 * ops are the leader's snapshot and are only applied, and after one each is broadcast (and so numbered) in turn,
+	 * keeping the room's versions, and the edits in its window, the leader's
+	 * @param op ADD, MOVE, RECOLOR, DELETE, CLEAR or SYNC, passed on only once the SYNC after it has arrived
+	 */
+	public void replicate(Op op) {
+		submit(PipelineEvent.Kind.REPLICATE, op);
+	}
+
+	private void submit(PipelineEvent.Kind kind, Op op) {
+		long seq = edits.next();
+		PipelineEvent event = edits.get(seq);
+		event.kind = kind;
+		event.op = op;
+		edits.publish(seq);
+	}
+
+	/**
+	 * Puts a client's request to the sequencer in the ring, in line with the edits
+	 */
+	private void request(PipelineEvent.Kind kind, ClientConnection comm, SnapshotStream snapshot, OutboundQueue queue) {
+		long seq = edits.next();
+		PipelineEvent event = edits.get(seq);
+		event.kind = kind;
+		event.comm = comm;
+		event.snapshot = snapshot;
+		event.queue = queue;
+		edits.publish(seq);
+	}
+
+	/**
+	 * Runs the task on the sequencer, in line with the edits
+	 */
+	private void runOnSequencer(Runnable task) {
+		long seq = edits.next();
+		PipelineEvent event = edits.get(seq);
+		event.kind = PipelineEvent.Kind.TASK;
+		event.task = task;
+		edits.publish(seq);
+	}
+
+	/**
+	 * Sets up the rings and starts the sequencer and the fan-out stages
+	 * Client threads publish into one ring; the sequencer applies each edit to the sketch in turn and
+	 * publishes the result into another, from which every fan-out stage queues it to the clients it serves
+	 * @param ringSize slots per ring
+	 * @param numFanout how many fan-out stages to share the clients among
+	 */
+	private void startPipeline(int ringSize, int numFanout) {
+		edits = new RingBuffer<>(ringSize, PipelineEvent::new);
+		sequencerReader = edits.newReader();
+		fanout = new RingBuffer<>(ringSize, PipelineEvent::new);
+		fanoutReaders = new ArrayList<>();
+		shards = new ArrayList<>();
+		for (int i = 0; i < numFanout; i++) {
+			fanoutReaders.add(fanout.newReader());
+			shards.add(new CopyOnWriteArrayList<>());
+		}
+		threads = new ArrayList<>();
+		stopped = false;
+		Thread sequencer = new Thread(this::runSequencer, "sketch-sequencer-" + name);
+		sequencer.setDaemon(true);
+		sequencer.start();
+		threads.add(sequencer);
+		for (int i = 0; i < numFanout; i++) {
+			int shard = i;
+			Thread stage = new Thread(() -> runFanout(shard), "sketch-fanout-" + name + "-" + i);
+			stage.setDaemon(true);
+			stage.start();
+			threads.add(stage);
+		}
+	}
+
+	/**
+	 * Sequencer thread: takes whatever has been published, in order, and applies it, until told to stop
+	 */
+	private void runSequencer() {
+		while (!stopped) {
+			long end = sequencerReader.waitFor();
+			for (long seq = sequencerReader.position(); seq < end; seq++) {
+				PipelineEvent event = edits.get(seq);
+				try {
+					sequence(event);
+				}
+				catch (RuntimeException e) {
+					// one bad edit mustn't stop the server
+					e.printStackTrace();
+				}
+				event.clear();
+			}
+			sequencerReader.release(end);
+		}
+	}
+
+	/**
+	 * Does one thing the sequencer was asked to
+	 */
+	private void sequence(PipelineEvent event) {
+		switch (event.kind) {
+			case EDIT:
+				applyEdit(event.op);
+				break;
+			case REPLICATE:
+				applyReplicated(event.op);
+				break;
+			case JOIN:
+				if (upstream != null && !replicaSynced) waiting.put(event.comm, event.snapshot);
+				else startJoin(event.comm, event.snapshot);
+				break;
+			case RESYNC:
+				startSnapshot(PipelineEvent.Kind.RESYNCED, event.comm, event.snapshot, event.queue);
+				break;
+			case CONTINUE:
+				if (!event.snapshot.isActive()) break;
+				SnapshotCache.Chunk chunk = snapshotChunk(event.snapshot.getAfter(), event.snapshot.getLast(), event.snapshot.getView());
+				emit(PipelineEvent.Kind.CHUNK, event.comm, event.snapshot, null, event.snapshot.getLast(), chunk);
+				break;
+			case LEAVE:
+				// one still waiting was never passed to a fan-out stage
+				if (waiting.remove(event.comm) != null) leave();
+				else emit(PipelineEvent.Kind.LEFT, event.comm, null, null, 0, null);
+				break;
+			case VIEW:
+				changeView(event.comm, event.snapshot, event.view);
+				break;
+			case TASK:
+				event.task.run();
+				break;
+			case STOP:
+				applyPending();
+				emit(PipelineEvent.Kind.STOPPED, null, null, null, 0, null);
+				stopped = true;
+				break;
+		}
+	}
+
+	/**
+	 * Hands a joining client to a fan-out stage, with the edits it missed if it can resume, or else
+	 * the start of a snapshot
+	 */
+	private void startJoin(ClientConnection comm, SnapshotStream snapshot) {
+		snapshot.setShard(nextShard);
+		nextShard = (nextShard + 1) % shards.size();
+		Op missed = missedSince(snapshot);
+		if (missed != null) emit(PipelineEvent.Kind.RESUMED, comm, snapshot, null, 0, missed, 0);
+		else startSnapshot(PipelineEvent.Kind.JOINED, comm, snapshot, null);
+	}
+
+	/**
+	 * Takes the first chunk of a snapshot of the sketch as it is now, for the client's fan-out stage to
+	 * (re)start its snapshot with
+	 */
+	private void startSnapshot(PipelineEvent.Kind kind, ClientConnection comm, SnapshotStream snapshot, OutboundQueue queue) {
+		int last = sketch.getLastId();
+		emit(kind, comm, snapshot, queue, last, snapshotChunk(0, last, snapshot.getView()));
+	}
+
+	/**
+	 * Moves a client's view, sending it what has come into view and what has gone out of it, in line with the edits,
+	 * then the VIEW back, so the client knows which view its sketch is of as of its next SYNC
+	 * A client that had the whole sketch is told to clear it and sent just what is in view
+	 * One still waiting for a relay's sketch, which no fan-out stage has yet, just starts with the new view
+	 */
+	private void changeView(ClientConnection comm, SnapshotStream snapshot, Bounds view) {
+		Bounds old = snapshot.getView();
+		snapshot.setView(view);
+		if (waiting.containsKey(comm)) {
+			snapshot.setShown(view);
+			return;
+		}
+		PersistentIntMap<Shape> shapes = sketch.snapshot();
+		int[] was = old == null ? new int[0] : sketch.getShapesIn(old);
+		int[] is = sketch.getShapesIn(view);
+		List<Op> changes = new ArrayList<>();
+		if (old == null) changes.add(Op.clear());
+		// both in ID order: walk them together
+		int i = 0, j = 0;
+		while (i < was.length || j < is.length) {
+			if (j == is.length || (i < was.length && was[i] < is[j])) changes.add(Op.leave(was[i++]));
+			else if (i == was.length || is[j] < was[i]) changes.add(Op.add(is[j], shapes.get(is[j++])));
+			else {
+				i++;
+				j++;
+			}
+		}
+		changes.add(Op.view(view));
+		long seq = fanout.next();
+		PipelineEvent event = fanout.get(seq);
+		event.clear();
+		event.kind = PipelineEvent.Kind.VIEWED;
+		event.comm = comm;
+		event.snapshot = snapshot;
+		event.view = view;
+		event.op = Op.batch(changes);
+		fanout.publish(seq);
+	}
+
+	/**
+	 * Encodes the next snapshotChunkBytes or so of shapes after the ID, up to last, as one BATCH of ADDs
+	 * Runs on the sequencer, so the chunk holds the shapes as they are after exactly the edits sequenced so far
+	 * If another client has been sent the same chunk since the last edit, that encoding is reused,
+	 * so clients joining at once share one encoding of the sketch
+	 * A client looking at part of the board is only sent the shapes there, found through the sketch's index;
+	 * its chunks are its own, so aren't cached
+	 * @param view what the client is looking at, or null for everything
+	 * @return the chunk, or null if there are no more shapes
+	 */
+	private SnapshotCache.Chunk snapshotChunk(int after, int last, Bounds view) {
+		if (view != null) {
+			int[] ids = sketch.getShapesIn(view);
+			int i = Arrays.binarySearch(ids, after + 1);
+			List<Op> adds = new ArrayList<>();
+			int bytes = 0;
+			int upTo = after;
+			for (i = i < 0 ? -i - 1 : i; i < ids.length && ids[i] <= last && bytes < snapshotChunkBytes; i++) {
+				Op add = Op.add(ids[i], sketch.getShapeById(ids[i]));
+				adds.add(add);
+				bytes += BinaryProtocol.encodedSize(add);
+				upTo = ids[i];
+			}
+			return adds.isEmpty() ? null : new SnapshotCache.Chunk(Op.batch(adds), upTo);
+		}
+		SnapshotCache.Chunk chunk = snapshotCache.get(version, after);
+		if (chunk != null) return chunk;
+		List<Op> adds = new ArrayList<>();
+		int bytes = 0;
+		int upTo = after;
+		for (PersistentIntMap.Node<Shape> entry : sketch.getShapesBetween(after, last)) {
+			if (bytes >= snapshotChunkBytes) break;
+			Op add = Op.add(entry.getKey(), entry.getValue());
+			adds.add(add);
+			bytes += BinaryProtocol.encodedSize(add);
+			upTo = entry.getKey();
+		}
+		if (adds.isEmpty()) return null;
+		return snapshotCache.put(after, Op.batch(adds), upTo);
+	}
+
+	/**
+	 * Finds the edits a client asking to resume has missed, if they are all still in the window
+	 * (of those, for a client looking at part of the board, what it would have been sent of them)
+	 * @return BATCH of the edits after the client's last SYNC (maybe none), or null if it needs a snapshot
+	 */
+	private Op missedSince(SnapshotStream snapshot) {
+		long from = snapshot.getResumeSeq();
+		if (from < 0 || snapshot.getResumeEpoch() != epoch || from > version) return null;
+		if (from < windowStart || version - from > window.length) return null;
+		List<Op> ops = new ArrayList<>((int) (version - from));
+		for (long seq = from + 1; seq <= version; seq++) {
+			int at = (int) (seq % window.length);
+			Op op = SnapshotStream.inView(window[at], windowBefore[at], windowAfter[at], snapshot.getView());
+			if (op != null) ops.add(op);
+		}
+		return Op.batch(ops);
+	}
+
+	/**
+	 * Passes a snapshot chunk on to the client's fan-out stage
+	 */
+	private void emit(PipelineEvent.Kind kind, ClientConnection comm, SnapshotStream snapshot, OutboundQueue queue,
+					  int last, SnapshotCache.Chunk chunk) {
+		if (chunk == null) emit(kind, comm, snapshot, queue, last, null, 0);
+		else emit(kind, comm, snapshot, queue, last, chunk.op, chunk.upTo);
+	}
+
+	private void emit(PipelineEvent.Kind kind, ClientConnection comm, SnapshotStream snapshot, OutboundQueue queue,
+					  int last, Op op, int upTo) {
+		long seq = fanout.next();
+		PipelineEvent event = fanout.get(seq);
+		event.clear();
+		event.kind = kind;
+		event.comm = comm;
+		event.snapshot = snapshot;
+		event.queue = queue;
+		event.last = last;
+		event.op = op;
+		event.upTo = upTo;
+		fanout.publish(seq);
+	}
+
+	/**
+	 * Fan-out stage: queues each op the sequencer broadcasts to the clients this stage serves,
+	 * and snapshot chunks to their clients, in sequence order
+	 * Since the snapshot streams are only moved on here, an edit is kept from a client exactly when it was
+	 * sequenced before the chunk holding its shape (see SnapshotStream.covers)
+	 * After each run of broadcasts or heartbeats, and as each client's snapshot or resume is done, clients that
+	 * take SYNC are told the sequence number they have been sent everything up to
+	 * With a log, each broadcast is held back until the log has it on disk; snapshots and resumes are only of
+	 * edits broadcast before them, so they never get ahead of the disk either
+	 */
+	private void runFanout(int shard) {
+		RingBuffer<PipelineEvent>.Reader reader = fanoutReaders.get(shard);
+		List<ClientConnection> clients = shards.get(shard);
+		long sent = version;		// sequence number of the last broadcast queued
+		long durable = version;		// sequence number the log is known to have on disk up to
+		while (true) {
+			long end = reader.waitFor();
+			boolean broadcast = false;
+			for (long seq = reader.position(); seq < end; seq++) {
+				PipelineEvent event = fanout.get(seq);
+				try {
+					if (event.kind == PipelineEvent.Kind.BROADCAST) {
+						// the first of a group of edits waits for the fsync; the rest went out in it
+						if (event.seq > durable) durable = log == null ? event.seq : log.awaitDurable(event.seq);
+						for (ClientConnection comm : clients) {
+							Op op = SnapshotStream.inView(event.op, event.before, event.after, comm.getSnapshot().getShown());
+							if (op != null) comm.send(op);
+						}
+						sent = event.seq;
+						broadcast = true;
+						continue;
+					}
+					if (event.kind == PipelineEvent.Kind.HEARTBEAT) {
+						sent = event.seq;
+						broadcast = true;
+						continue;
+					}
+					if (event.kind == PipelineEvent.Kind.LEFT) {
+						clients.remove(event.comm);
+						// only one stage finds it, however many times the client said it was leaving
+						if (comms.remove(event.comm)) leave();
+						continue;
+					}
+					if (event.kind == PipelineEvent.Kind.DROPPED) {
+						// each client's own thread then says it is leaving, which this stage mustn't wait to do
+						for (ClientConnection comm : clients) comm.close();
+						continue;
+					}
+					if (event.kind == PipelineEvent.Kind.STOPPED) {
+						reader.release(end);
+						return;
+					}
+					SnapshotStream snapshot = event.snapshot;
+					if (snapshot.getShard() != shard) continue;
+					switch (event.kind) {
+						case VIEWED:
+							snapshot.setShown(event.view);
+							event.comm.send(event.op);
+							event.comm.send(Op.sync(epoch, sent, System.currentTimeMillis()));
+							continue;
+						case RESUMED:
+							clients.add(event.comm);
+							addCommunicator(event.comm);
+							if (!event.op.getOps().isEmpty()) event.comm.send(event.op);
+							event.comm.send(Op.sync(epoch, sent, System.currentTimeMillis()));
+							continue;
+						case JOINED:
+							// a client that couldn't resume still has its old sketch
+							if (snapshot.getResumeSeq() >= 0) event.comm.send(Op.clear());
+							snapshot.start(event.last);
+							clients.add(event.comm);
+							addCommunicator(event.comm);
+							break;
+						case RESYNCED:
+							event.queue.resyncDone();
+							snapshot.start(event.last);
+							break;
+					}
+					if (event.op == null) {
+						snapshot.finish();
+					}
+					else {
+						snapshot.queued(event.op, event.upTo);
+						event.comm.send(event.op);
+					}
+					if (!snapshot.isActive()) event.comm.send(Op.sync(epoch, sent, System.currentTimeMillis()));
+				}
+				catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+			if (broadcast) {
+				// one op shared by all, which only those that take it and aren't mid-snapshot queue
+				Op sync = Op.sync(epoch, sent, System.currentTimeMillis());
+				for (ClientConnection comm : clients) comm.send(sync);
+			}
+			reader.release(end);
+		}
+	}
+
+	/**
+	 * Applies one edit to the sketch and broadcasts it; runs on the sequencer, one edit at a time
+	 * @param edit incomming CREATE, DELETE, MOVE or RECOLOR
+	 */
+	private void applyEdit(Op edit) {
+		int id = edit.getId();
+		Shape shape;
+		switch (edit.getType()) {
+			case CREATE:
+				applyPending();
+				shape = edit.getShape();
+				if (shape == null) break;
+				id = sketch.serverAddShape(shape);
+				broadcast(Op.add(id, shape), null, shape);
+				break;
+			case DELETE:
+				applyPending();
+				shape = sketch.getShapeById(id);
+				sketch.deleteShape(id);
+				broadcast(edit, shape, null);
+				break;
+			case MOVE:
+				shape = sketch.getShapeById(id);
+				if (shape == null) break;
+				if (tickMillis > 0) {
+					PendingUpdate update = pending.computeIfAbsent(id, k -> new PendingUpdate());
+					update.moved = true;
+					update.dx += edit.getDx();
+					update.dy += edit.getDy();
+					break;
+				}
+				broadcast(edit, shape, sketch.moveShape(id, edit.getDx(), edit.getDy()));
+				break;
+			case RECOLOR:
+				shape = sketch.getShapeById(id);
+				if (shape == null) break;
+				Color color = new Color(edit.getColor());
+				if (tickMillis > 0) {
+					pending.computeIfAbsent(id, k -> new PendingUpdate()).color = color;
+					break;
+				}
+				broadcast(edit, shape, sketch.recolorShape(id, color));
+				break;
+		}
+	}
+
+	/**
+	 * Applies one op from the leader's stream; see replicate
+	 */
+	private void applyReplicated(Op op) {
+		Shape before = sketch.getShapeById(op.getId()), after = null;
+		switch (op.getType()) {
+			case ADD:
+				sketch.restoreShape(op.getId(), op.getShape());
+				after = op.getShape();
+				break;
+			case MOVE:
+				after = sketch.moveShape(op.getId(), op.getDx(), op.getDy());
+				break;
+			case RECOLOR:
+				after = sketch.recolorShape(op.getId(), new Color(op.getColor()));
+				break;
+			case DELETE:
+				sketch.deleteShape(op.getId());
+				break;
+			case CLEAR:
+				// the leader is about to send its whole sketch, which a relay's clients will have to join again for
+				sketch.clear();
+				replicaSynced = false;
+				if (upstream != null) emit(PipelineEvent.Kind.DROPPED, null, null, null, 0, null);
+				return;
+			case SYNC:
+				if (!replicaSynced || op.getEpoch() != epoch || op.getSeq() != version) {
+					// after a snapshot (or ops coalesced on the way) the window doesn't hold the leader's edits up to here
+					epoch = op.getEpoch();
+					version = op.getSeq();
+					windowStart = version;
+					emitHeartbeat();
+				}
+				replicaSynced = true;
+				replicatedSeq = version;
+				replicatedTime = op.getTime();
+				for (Map.Entry<ClientConnection, SnapshotStream> entry : waiting.entrySet()) {
+					startJoin(entry.getKey(), entry.getValue());
+				}
+				waiting.clear();
+				return;
+			default:
+				return;
+		}
+		if (replicaSynced) broadcast(op, before, after);
+	}
+
+	/**
+	 * Applies the MOVE/RECOLORs held back during this tick, as one summed MOVE and
+	 * the last RECOLOR per shape, and broadcasts those compacted updates
+	 * Called on the sequencer, at every tick and before any CREATE/DELETE so ordering is kept
+	 */
+	private void applyPending() {
+		if (pending.isEmpty()) return;
+		for (Map.Entry<Integer, PendingUpdate> entry : pending.entrySet()) {
+			int id = entry.getKey();
+			PendingUpdate update = entry.getValue();
+			Shape shape = sketch.getShapeById(id);
+			if (shape == null) continue;
+			if (update.moved && (update.dx != 0 || update.dy != 0)) {
+				Shape moved = sketch.moveShape(id, update.dx, update.dy);
+				broadcast(Op.move(id, update.dx, update.dy), shape, moved);
+				shape = moved;
+			}
+			if (update.color != null) {
+				broadcast(Op.recolor(id, update.color.getRGB()), shape, sketch.recolorShape(id, update.color));
+			}
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Applies the MOVE/RECOLORs held back since the last tick, on the sequencer
+	 */
+	public void tick() {
+		if (!closed) runOnSequencer(this::applyPending);
+	}
+
+	/**
+	 * Has each client that takes SYNC told again how far it is, on the sequencer, even if nothing has changed,
+	 * so a follower can tell a quiet leader from one it has lost touch with
+	 */
+	public void heartbeat() {
+		if (!closed) runOnSequencer(this::emitHeartbeat);
+	}
+
+	private void emitHeartbeat() {
+		long seq = fanout.next();
+		PipelineEvent event = fanout.get(seq);
+		event.clear();
+		event.kind = PipelineEvent.Kind.HEARTBEAT;
+		event.seq = version;
+		fanout.publish(seq);
+	}
+
+	/**
+	 * Adds the communicator to the list of current communicators; called by its fan-out stage as it joins
+	 * The list is copy-on-write, so this needs no lock of its own
+	 */
+	private void addCommunicator(ClientConnection comm) {
+		comms.add(comm);
+	}
+
+	/**
+	 * Removes the communicator from the list of current communicators, and its fan-out stage's
+	 * This goes through the sequencer too, so it can't overtake the client's own join
+	 */
+	public void removeCommunicator(ClientConnection comm) {
+		request(PipelineEvent.Kind.LEAVE, comm, null, null);
+	}
+
+	/**
+	 * Sends the message from the one communicator to all (including the originator)
+	 * Called on the sequencer, which gives the op the next sequence number and passes it to the fan-out
+	 * stages, so every client sees messages in the same order
+	 * The fan-out only queues the op for each client, so a slow client doesn't hold anyone else up
+	 * Every op broadcast is a change to the sketch, so this also moves the sketch's version on, and goes in the log
+	 * (which the fan-out waits on before passing it to clients, so the sequencer itself doesn't wait for the disk)
+	 * @param before the shape before the op, or null if there wasn't one, and after, the shape after it, or null if
+	 * there isn't one now, so each client can be sent only what it can see
+	 */
+	private void broadcast(Op op, Shape before, Shape after) {
+		if (log != null) log.append(op);
+		long seq = fanout.next();
+		PipelineEvent event = fanout.get(seq);
+		event.clear();
+		event.kind = PipelineEvent.Kind.BROADCAST;
+		event.op = op;
+		event.before = before;
+		event.after = after;
+		event.seq = ++version;
+		fanout.publish(seq);
+		int at = (int) (version % window.length);
+		window[at] = op;
+		windowBefore[at] = before;
+		windowAfter[at] = after;
+		if (log != null && version - checkpointStarted >= checkpointEvery && !checkpointing) checkpoint();
+	}
+
+	/**
+	 * Starts a new log segment here, and saves the sketch as of now on a background thread, after which the
+	 * segments before this one are deleted; so the log only grows by about checkpointEvery edits
+	 * The sequencer carries straight on: the checkpoint writes out one version of the sketch, which later
+	 * edits don't change
+	 */
+	private void checkpoint() {
+		try {
+			if (!log.roll(version)) return;
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		PersistentIntMap<Shape> shapes = sketch.snapshot();
+		long at = version;
+		int lastId = sketch.getLastId();
+		checkpointStarted = at;
+		checkpointing = true;
+		checkpointWriter = new Thread(() -> {
+			try {
+				log.checkpoint(shapes, at, lastId);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				System.err.println("checkpoint at version " + at + " failed; keeping the log since the last one");
+			}
+			finally {
+				checkpointing = false;
+			}
+		}, "sketch-checkpoint-" + name);
+		checkpointWriter.setDaemon(true);
+		checkpointWriter.start();
+	}
+
+	/**
+	 * Prints how many ops each client has waiting, so we can see who is falling behind
+	 * @param all whether to include clients that are caught up
+	 * @param capacity most ops a client's queue holds
+	 */
+	public void reportQueues(boolean all, int capacity) {
+		for (ClientConnection comm : comms) {
+			int depth = comm.getQueueDepth();
+			if (all || depth > 0) {
+				System.out.println("queue " + name + "/" + comm.getName() + ": " + depth + "/" + capacity);
+			}
+		}
+	}
+}
@@ -1,83 +1,477 @@
-import java.awt.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.io.*;
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 /**
  * A server to handle sketches: getting requests from the clients,
  * updating the overall state, and passing them on to the clients
+ * Hosts any number of independent sketches, in named rooms that a client picks in its HELLO
+ * (old editors, and new ones that don't name one, get the default room); each room has its own
+ * sequencer and fan-out threads, so rooms never wait on each other
+ * A room nobody has been in for a while is saved to disk and dropped from memory, least recently used
+ * first (and sooner if more than --max-rooms are open, or their sketches take more than --room-memory),
+ * and loaded again when someone next enters it
+ * With --follow=host:port it is instead a hot standby: it replicates rooms from that leader server, reporting
+ * how far behind it is, and only once the leader has been gone a while does it take over and let clients in,
+ * with the leader's sequence numbers, so they can resume where they left off
+ * With --relay=host:port it is a relay for a read-mostly audience: each room mirrors the same room upstream,
+ * serving snapshots and edits to its own clients and passing their edits up, so a tree of relays can share
+ * out the sockets that one server would otherwise hold for every viewer
  *
  */
 public class SketchServer {
+	public static final String DEFAULT_ROOM = "default";
+	private static final Pattern ROOM_NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
 	private ServerSocket listen;						// for accepting connections
-	private ArrayList<SketchServerCommunicator> comms;	// all the connections with clients
-	private Sketch sketch;								// the state of the world
+	private Map<String, CompletableFuture<SketchRoom>> rooms;	// every room open, or being opened or closed, by name
+	private ExecutorService roomEntries;				// enters rooms for the event loops, which mustn't wait on a load
+	private SketchServerEventLoop[] loops;				// selector threads, in the non-blocking mode
+	private AtomicInteger nextLoop;						// round-robin position for handing out new clients
+	private Options options;							// startup options
+	private boolean virtualThreads;						// whether to run each communicator on a virtual thread
+	private int queueCapacity;							// most ops queued for one client
+	private OutboundQueue.Policy slowPolicy;			// what to do with a client whose queue is full
+	private long batchWindowNanos;						// how long a writer keeps collecting ops before flushing (0 = flush what's there)
+	private int batchBytes;								// flush early once a batch holds this many bytes
+	private Path logDir;								// where rooms' edits are saved, if anywhere
+	private Path pageDir;								// where rooms without a log are saved while closed
+	private long roomIdleMillis;						// how long a room stays open with nobody in it
+	private int maxRooms;								// most rooms open at once, if they can be closed (0 = no limit)
+	private long maxRoomBytes;							// most heap the open rooms' sketches may take, roughly, if they can be closed (0 = no limit)
+	private AtomicInteger roomLoads;					// rooms opened, counting reopenings
+	private AtomicLong roomLoadNanos;					// time spent opening them
+	private int helloTimeout;							// ms to wait for a new client's HELLO before treating it as an old text editor
+	private boolean allowBinary;						// whether clients may negotiate the binary protocol
+	private boolean verbose;							// whether to log every command received
+	private long tickMillis;							// MOVE/RECOLOR apply period (0 = apply each one as it comes)
+	private long heartbeatMillis;						// how often clients that take SYNC are sent one even if nothing changed
+	private boolean following;							// whether rooms are being replicated from a leader, rather than logged
+	private List<ReplicaLink> links;					// one per room followed
+	private String relayFrom;							// host:port of the server upstream, if relaying
 	
-	public SketchServer(ServerSocket listen) {
+	public SketchServer(ServerSocket listen) throws IOException {
+		this(listen, new Options(new String[0]));
+	}
+
+	/**
+	 * Opens the default room; with --log=dir, first rebuilds its sketch from the checkpoint and edits saved there
+	 * (unless following a leader, in which case the rooms' logs are only started on taking over, or relaying,
+	 * in which case the server upstream keeps the sketches)
+	 */
+	public SketchServer(ServerSocket listen, Options options) throws IOException {
 		this.listen = listen;
-		sketch = new Sketch();
-		comms = new ArrayList<SketchServerCommunicator>();
+		this.options = options;
+		rooms = new ConcurrentHashMap<>();
+		roomEntries = Executors.newCachedThreadPool(task -> {
+			Thread thread = new Thread(task, "sketch-enter");
+			thread.setDaemon(true);
+			return thread;
+		});
+		nextLoop = new AtomicInteger();
+		virtualThreads = options.getString("mode", "threads").equals("virtual");
+		queueCapacity = options.getInt("queue", 4096);
+		slowPolicy = OutboundQueue.Policy.valueOf(options.getString("slow-policy", "resync").toUpperCase());
+		batchWindowNanos = options.getLong("batch-window", 0) * 1000000L;
+		batchBytes = options.getInt("batch-bytes", 64 * 1024);
+		tickMillis = options.getLong("tick", 0);
+		heartbeatMillis = options.getLong("heartbeat", 1000);
+		following = options.getString("follow", null) != null;
+		links = new ArrayList<>();
+		relayFrom = options.getString("relay", null);
+		helloTimeout = options.getInt("hello-timeout", 500);
+		allowBinary = options.getBoolean("binary", true);
+		verbose = !options.getBoolean("quiet", false);
+		String logPath = options.getString("log", null);
+		if (logPath != null) logDir = Paths.get(logPath);
+		String pagePath = options.getString("page-dir", null);
+		pageDir = pagePath != null ? Files.createDirectories(Paths.get(pagePath)) : Files.createTempDirectory("sketch-rooms");
+		roomIdleMillis = options.getLong("room-idle", 600000);
+		maxRooms = options.getInt("max-rooms", 0);
+		maxRoomBytes = options.getLong("room-memory", 0) * 1024 * 1024;
+		roomLoads = new AtomicInteger();
+		roomLoadNanos = new AtomicLong();
+		rooms.put(DEFAULT_ROOM, CompletableFuture.completedFuture(openRoom(DEFAULT_ROOM)));
+	}
+
+	public Options getOptions() {
+		return options;
 	}
 
+	/**
+	 * Counts a client into the room with the name, opening it (and loading its sketch) if it isn't open;
+	 * the client must leave through the room's removeCommunicator
+	 * The map holds a future for each room, so loading or saving a sketch only holds up those entering that
+	 * room: whoever finds no room puts in a future and loads the room, while anyone else entering it waits on
+	 * that future; a room being closed can't be entered, so they wait for it to be saved and then open it again
+	 * Blocks for as long as that takes, so the event loops go through enterRoomLater instead
+	 * @throws UncheckedIOException if the room's sketch can't be loaded
+	 */
+	public SketchRoom enterRoom(String name) {
+		while (true) {
+			CompletableFuture<SketchRoom> opening = new CompletableFuture<>();
+			CompletableFuture<SketchRoom> slot = rooms.putIfAbsent(name, opening);
+			if (slot == null) {
+				slot = opening;
+				try {
+					opening.complete(openRoom(name));
+				}
+				catch (IOException | RuntimeException e) {
+					rooms.remove(name, opening);
+					opening.completeExceptionally(e);
+				}
+			}
+			SketchRoom room;
+			try {
+				room = slot.join();
+			}
+			catch (CompletionException e) {
+				if (e.getCause() instanceof IOException) throw new UncheckedIOException((IOException) e.getCause());
+				throw e;
+			}
+			// null once closed, and a closing room turns everyone away, so either way try again
+			if (room != null && room.enter()) return room;
+		}
+	}
+
+	/**
+	 * Enters the room with the name on another thread, for a caller that can't wait on its sketch loading
+	 * @return completes with the room once entered, or exceptionally if it couldn't be opened
+	 */
+	public CompletableFuture<SketchRoom> enterRoomLater(String name) {
+		return CompletableFuture.supplyAsync(() -> enterRoom(name), roomEntries);
+	}
+
+	/**
+	 * @return the room a future in rooms holds, or null if it is still being opened or closed
+	 */
+	private static SketchRoom loaded(CompletableFuture<SketchRoom> slot) {
+		return slot.isDone() && !slot.isCompletedExceptionally() ? slot.join() : null;
+	}
+
+	/**
+	 * @return the rooms open now, leaving out any being opened or closed
+	 */
+	private List<SketchRoom> openRooms() {
+		List<SketchRoom> open = new ArrayList<>();
+		for (CompletableFuture<SketchRoom> slot : rooms.values()) {
+			SketchRoom room = loaded(slot);
+			if (room != null) open.add(room);
+		}
+		return open;
+	}
+
+	/**
+	 * @return the default room's sketch
+	 */
 	public Sketch getSketch() {
-		return sketch;
+		return rooms.get(DEFAULT_ROOM).join().getSketch();
 	}
 
 	/**
-	 * creates an "ADD" command for every current shape to update the new client
-	 * @return String with one line per shape to be drawn
+	 * @return how many rooms are open, leaving out any being opened or closed
 	 */
-	public String getWorldDescription() {
-		List<Integer> ids = sketch.getShapesIdsOrdered();
-		StringBuilder sb = new StringBuilder();
-		ids.stream().forEach((id) -> {
-			sb.append("ADD ");
-			sb.append(id);
-			sb.append(" ");
-			sb.append(sketch.getShapeById(id).toString());
-			sb.append("\n");
-		});
-		return sb.toString();
+	public int getResidentRooms() {
+		return openRooms().size();
 	}
 
 	/**
-	 * atomically handles every incoming edit command
-	 * it is synchronized so there is always a single state in the sketch
-	 * which represents ground truth
-	 * @param command incomming command to parse and handle
+	 * Starts a room, loading its sketch; the default room logs straight into the log directory, any other
+	 * in rooms/name under it, and without a log a closed room is kept as name.ckpt in the page directory
+	 * A relay's room is loaded from upstream instead, and not kept at all once closed
 	 */
-	public synchronized void handleEdit(String command) {
-		String[] parts = command.split(" ");
-		switch (parts[0]) {
-			case "CREATE":
-				Shape shape = Sketch.parseCreateCommand(command);
-				int id = sketch.serverAddShape(shape);
-				broadcast(String.format("ADD %d %s", id, shape.toString()));
-				break;
-			case "DELETE":
-				id = Integer.parseInt(parts[1]);
-				sketch.deleteShape(id);
-				broadcast(command);
-				break;
-			case "MOVE":
-				id = Integer.parseInt(parts[1]);
-				shape = sketch.getShapeById(id);
-				if (shape == null) break;
-				shape.moveBy(Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
-				broadcast(command);
-				break;
-			case "RECOLOR":
-				id = Integer.parseInt(parts[1]);
-				shape = sketch.getShapeById(id);
-				if (shape == null) break;
-				Color color = new Color(Integer.parseInt(parts[2]));
-				shape.setColor(color);
-				broadcast(command);
+	private SketchRoom openRoom(String name) throws IOException {
+		long start = System.nanoTime();
+		SketchRoom room;
+		if (relayFrom != null) {
+			room = new SketchRoom(name, options, null, null);
+			room.relayFrom(new ReplicaLink(room, relayFrom));
+		}
+		else {
+			EditLog log = following ? null : openLog(name);
+			room = new SketchRoom(name, options, log, pageDir.resolve(name + ".ckpt"));
+		}
+		long nanos = System.nanoTime() - start;
+		int loads = roomLoads.incrementAndGet();
+		long total = roomLoadNanos.addAndGet(nanos);
+		if (!name.equals(DEFAULT_ROOM)) {
+			System.out.printf("opened room %s (%d shapes) in %.1f ms; %d rooms resident, %.1f ms per load on average%n",
+					name, room.getSketch().snapshot().size(), nanos / 1e6, getResidentRooms() + 1, total / 1e6 / loads);
+		}
+		return room;
+	}
+
+	/**
+	 * @return the room's log, not yet replayed or started, or null if there is no log directory
+	 */
+	private EditLog openLog(String name) throws IOException {
+		if (logDir == null) return null;
+		return new EditLog(name.equals(DEFAULT_ROOM) ? logDir : logDir.resolve("rooms").resolve(name));
+	}
+
+	/**
+	 * Replicates the rooms from the leader, each over a link of its own, until the leader has been out of reach
+	 * for promoteAfter ms, then takes over: the links are dropped and, with a log directory, each room starts
+	 * logging (see SketchRoom.startLog); returns once the server is ready to be let at by clients
+	 * Every reportMillis meanwhile, prints each room's sequence number and how far behind the leader it is
+	 * @param leader host:port of the leader's client port
+	 * @param roomNames the rooms to follow
+	 * @param promoteAfter ms without the leader before taking over (negative = never)
+	 * @param reportMillis time between replication reports (0 = none)
+	 */
+	public void follow(String leader, List<String> roomNames, long promoteAfter, long reportMillis) throws IOException {
+		for (String name : roomNames) {
+			if (!ROOM_NAME.matcher(name).matches()) throw new IllegalArgumentException("bad room name: " + name);
+			ReplicaLink link = new ReplicaLink(enterRoom(name), leader);
+			links.add(link);
+			link.start();
+		}
+		System.out.println("following " + leader + " for rooms " + roomNames);
+		long lastReport = System.currentTimeMillis();
+		while (true) {
+			try {
+				Thread.sleep(100);
+			}
+			catch (InterruptedException e) {
+				throw new InterruptedIOException("interrupted following " + leader);
+			}
+			long down = Long.MAX_VALUE;
+			for (ReplicaLink link : links) down = Math.min(down, link.getDownMillis());
+			if (promoteAfter >= 0 && down >= promoteAfter) {
+				System.out.println("leader gone for " + down + " ms; taking over");
 				break;
+			}
+			if (reportMillis > 0 && System.currentTimeMillis() - lastReport >= reportMillis) {
+				reportReplication();
+				lastReport = System.currentTimeMillis();
+			}
+		}
+		for (ReplicaLink link : links) {
+			link.stop();
+			link.getRoom().leave();
+		}
+		reportReplication();
+		links.clear();
+		following = false;
+		for (SketchRoom room : openRooms()) {
+			EditLog log = openLog(room.getName());
+			if (log != null) room.startLog(log);
+		}
+	}
+
+	/**
+	 * Prints where each followed room has got to in the leader's sequence, and how long ago the leader sent
+	 * that (so how far behind it is, as long as the two clocks agree)
+	 */
+	public void reportReplication() {
+		long now = System.currentTimeMillis();
+		for (ReplicaLink link : links) {
+			SketchRoom room = link.getRoom();
+			String state = link.isConnected() ? "" : " (leader unreachable)";
+			if (room.getReplicatedSeq() < 0) {
+				System.out.println("replica " + room.getName() + ": not caught up yet" + state);
+			}
+			else {
+				System.out.println("replica " + room.getName() + ": at seq " + room.getReplicatedSeq() + ", "
+						+ (now - room.getReplicatedTime()) + " ms behind the leader" + state);
+			}
 		}
 	}
 
+	/**
+	 * Closes the room if nobody is in it, saving its sketch to disk and dropping it from memory
+	 * Its future in rooms is swapped for one that anyone entering meanwhile waits on, which completes once the
+	 * room is saved (or back open, if it couldn't be), so the map is never locked while the sketch is written
+	 * @return whether it was closed
+	 */
+	private boolean closeRoom(SketchRoom room) {
+		String name = room.getName();
+		CompletableFuture<SketchRoom> slot = rooms.get(name);
+		if (slot == null || loaded(slot) != room) return false;
+		CompletableFuture<SketchRoom> closing = new CompletableFuture<>();
+		if (!rooms.replace(name, slot, closing)) return false;
+		long start = System.nanoTime();
+		boolean closed;
+		try {
+			closed = room.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("couldn't save room " + name + ", so keeping it open");
+			closed = false;
+		}
+		if (closed) rooms.remove(name, closing);
+		else rooms.replace(name, closing, slot);
+		closing.complete(closed ? null : room);
+		if (closed) {
+			System.out.printf("closed idle room %s (%d shapes) in %.1f ms; %d rooms resident%n",
+					name, room.getSketch().snapshot().size(), (System.nanoTime() - start) / 1e6, getResidentRooms());
+		}
+		return closed;
+	}
+
+	/**
+	 * Closes the rooms nobody has been in for roomIdleMillis, then, while more than maxRooms are open or their
+	 * sketches take more than maxRoomBytes, the least recently used of those with nobody in them;
+	 * the default room stays open
+	 */
+	public void closeIdleRooms() {
+		List<SketchRoom> open = openRooms();
+		int resident = open.size();
+		long bytes = 0;
+		List<SketchRoom> idle = new ArrayList<>();
+		for (SketchRoom room : open) {
+			if (maxRoomBytes > 0) bytes += room.getResidentBytes();
+			if (!room.getName().equals(DEFAULT_ROOM) && room.getUsers() == 0) idle.add(room);
+		}
+		idle.sort(Comparator.comparingLong(SketchRoom::getLastUsed));
+		long now = System.currentTimeMillis();
+		for (SketchRoom room : idle) {
+			boolean expired = now - room.getLastUsed() >= roomIdleMillis;
+			boolean over = (maxRooms > 0 && resident > maxRooms) || (maxRoomBytes > 0 && bytes > maxRoomBytes);
+			if (!expired && !over) break;		// nor will any used more recently
+			long size = maxRoomBytes > 0 ? room.getResidentBytes() : 0;
+			if (closeRoom(room)) {
+				resident--;
+				bytes -= size;
+			}
+		}
+	}
+
+	/**
+	 * Checks for idle rooms to close every so often on a background thread
+	 */
+	public void startRoomSweeps() {
+		long millis = Math.max(10, Math.min(roomIdleMillis / 4, 1000));
+		Thread sweeper = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(millis);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				closeIdleRooms();
+			}
+		}, "room-sweep");
+		sweeper.setDaemon(true);
+		sweeper.start();
+	}
+
+	/**
+	 * @return whether per-client threads should be virtual threads
+	 */
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * @return how long a client's writer may hold ops back to send them in one write, in nanoseconds
+	 */
+	public long getBatchWindowNanos() {
+		return batchWindowNanos;
+	}
+
+	/**
+	 * @return how many bytes a client's writer may collect before it writes them out regardless of the window
+	 */
+	public int getBatchBytes() {
+		return batchBytes;
+	}
+
+	/**
+	 * @return whether every command received should be logged (turned off with --quiet, since logging allocates)
+	 */
+	public boolean isVerbose() {
+		return verbose;
+	}
+
+	/**
+	 * @return ms to wait for a client's HELLO line
+	 */
+	public int getHelloTimeout() {
+		return helloTimeout;
+	}
+
+	/**
+	 * Decides what to grant a client that opened with HELLO
+	 * @param hello the client's requested parameters
+	 * @return the parameters for the WELCOME line (proto and room are always set, and sync=true
+	 * if the client asked for SYNC markers, so it can resume from one if it reconnects, and view=x1,y1,x2,y2
+	 * if it is only looking at that part of the board)
+	 */
+	public Map<String, String> negotiate(Map<String, String> hello) {
+		Map<String, String> agreed = new LinkedHashMap<>();
+		agreed.put("proto", allowBinary && "binary".equals(hello.get("proto")) ? "binary" : "text");
+		String room = hello.get("room");
+		agreed.put("room", room != null && ROOM_NAME.matcher(room).matches() ? room : DEFAULT_ROOM);
+		if ("true".equals(hello.get("sync"))) agreed.put("sync", "true");
+		Bounds view = Bounds.parse(hello.get("view"));
+		if (view != null) agreed.put("view", view.toString());
+		return agreed;
+	}
+
+	/**
+	 * @return an empty outbound queue for a new client, with the configured size and slow-consumer policy
+	 */
+	public OutboundQueue newOutboundQueue() {
+		return new OutboundQueue(queueCapacity, slowPolicy);
+	}
+
+	/**
+	 * Starts the fixed tick on which held-back MOVE/RECOLORs are applied, if --tick was given
+	 * One ticker serves every room, each room applying its own on its own sequencer
+	 */
+	public void startTicks() {
+		if (tickMillis <= 0) return;
+		Thread ticker = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(tickMillis);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				for (SketchRoom room : openRooms()) room.tick();
+			}
+		}, "sketch-tick");
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	/**
+	 * Starts sending every room's clients that take SYNC one every --heartbeat ms, whether or not anything
+	 * has changed, so followers can tell how far behind they are even when nothing is being drawn
+	 */
+	public void startHeartbeats() {
+		if (heartbeatMillis <= 0) return;
+		Thread heart = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(heartbeatMillis);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				for (SketchRoom room : openRooms()) room.heartbeat();
+			}
+		}, "sketch-heartbeat");
+		heart.setDaemon(true);
+		heart.start();
+	}
+
 	/**
 	 * The usual loop of accepting connections and firing off new threads to handle them
 	 */
@@ -85,36 +479,121 @@ public class SketchServer {
 		System.out.println("server ready for connections");
 		while (true) {
 			SketchServerCommunicator comm = new SketchServerCommunicator(listen.accept(), this);
-			comm.setDaemon(true);
-			comm.start();
-			addCommunicator(comm);
+			Threads.start(comm, "sketch-client", virtualThreads);
+		}
+	}
+
+	/**
+	 * Non-blocking alternative to getConnections: a fixed pool of selector threads
+	 * accepts, reads and writes for every client, instead of one thread per client
+	 * Requires the server socket to have been opened through a ServerSocketChannel
+	 * @param numLoops how many selector threads to run
+	 */
+	public void getConnectionsNio(int numLoops) throws IOException {
+		loops = new SketchServerEventLoop[numLoops];
+		for (int i = 0; i < numLoops; i++) {
+			loops[i] = new SketchServerEventLoop(this, i);
+			loops[i].setDaemon(true);
+			loops[i].start();
+		}
+		loops[0].listen(listen.getChannel());
+		System.out.println("server ready for connections (" + numLoops + " event loops)");
+		for (SketchServerEventLoop loop : loops) {
+			try {
+				loop.join();
+			}
+			catch (InterruptedException e) {
+				return;
+			}
 		}
 	}
 
 	/**
-	 * Adds the communicator to the list of current communicators
+	 * @return the event loop that should serve the next accepted client
 	 */
-	public synchronized void addCommunicator(SketchServerCommunicator comm) {
-		comms.add(comm);
+	public SketchServerEventLoop nextEventLoop() {
+		return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
 	}
 
 	/**
-	 * Removes the communicator from the list of current communicators
+	 * Prints how many ops each client in each room has waiting, so we can see who is falling behind
+	 * @param all whether to include clients that are caught up
 	 */
-	public synchronized void removeCommunicator(SketchServerCommunicator comm) {
-		comms.remove(comm);
+	public void reportQueues(boolean all) {
+		for (SketchRoom room : openRooms()) room.reportQueues(all, queueCapacity);
 	}
 
 	/**
-	 * Sends the message from the one communicator to all (including the originator)
+	 * Reports queue depths every so often on a background thread
+	 * @param millis time between reports
 	 */
-	public synchronized void broadcast(String msg) {
-		for (SketchServerCommunicator comm : comms) {
-			comm.send(msg);
-		}
+	public void startQueueReports(long millis) {
+		Thread reporter = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(millis);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				reportQueues(false);
+			}
+		}, "queue-report");
+		reporter.setDaemon(true);
+		reporter.start();
 	}
 	
+	/**
+	 * Usage: java SketchServer [--port=4242] [--mode=threads|virtual|nio] [--loops=N]
+	 *                           [--queue=4096] [--slow-policy=resync|disconnect|coalesce] [--queue-report=ms]
+	 *                           [--batch-window=ms] [--batch-bytes=65536] [--tick=ms]
+	 *                           [--hello-timeout=500] [--binary=true|false] [--snapshot-chunk=65536] [--quiet]
+	 *                           [--ring=8192] [--fanout=1] [--log=dir] [--checkpoint-every=1000000] [--replay-window=4096]
+	 *                           [--room-idle=ms] [--max-rooms=N] [--room-memory=MB] [--page-dir=dir] [--heartbeat=1000]
+	 *                           [--follow=host:port] [--follow-rooms=default,...] [--promote-after=3000] [--lag-report=5000]
+	 *                           [--relay=host:port]
+	 * "threads" (the default) runs one thread per client, "virtual" one virtual thread per client,
+	 * and "nio" runs N selector threads for all of them
+	 * --ring, --fanout, --snapshot-chunk, --checkpoint-every and --replay-window apply to each room
+	 * Rooms nobody has been in for --room-idle ms (default 600000) are put away, as are the least recently
+	 * used empty ones while there are more than --max-rooms or their sketches take more than about --room-memory MB;
+	 * without --log they go in --page-dir (default a temp dir)
+	 * A follower replicates --follow-rooms from the leader at --follow (its client port), reporting every --lag-report ms,
+	 * and only listens on --port once the leader has been unreachable for --promote-after ms (negative = never)
+	 * A relay serves whichever rooms its clients ask for from the server at --relay (which may itself be a relay)
+	 */
 	public static void main(String[] args) throws Exception {
-		new SketchServer(new ServerSocket(4242)).getConnections();
+		Options options = new Options(args);
+		String leader = options.getString("follow", null);
+		SketchServer server = new SketchServer(leader == null ? bind(options) : null, options);
+		long reportMillis = options.getLong("queue-report", 0);
+		if (reportMillis > 0) server.startQueueReports(reportMillis);
+		server.startTicks();
+		server.startHeartbeats();
+		server.startRoomSweeps();
+		if (leader != null) {
+			List<String> roomNames = Arrays.asList(options.getString("follow-rooms", DEFAULT_ROOM).split(","));
+			server.follow(leader, roomNames, options.getLong("promote-after", 3000), options.getLong("lag-report", 5000));
+			server.listen = bind(options);
+		}
+		if (options.getString("mode", "threads").equals("nio")) {
+			server.getConnectionsNio(options.getInt("loops", Runtime.getRuntime().availableProcessors()));
+		}
+		else {
+			server.getConnections();
+		}
+	}
+
+	/**
+	 * Opens the server socket on --port, through a channel for the nio mode
+	 */
+	private static ServerSocket bind(Options options) throws IOException {
+		int port = options.getInt("port", 4242);
+		if (options.getString("mode", "threads").equals("nio")) {
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			channel.bind(new InetSocketAddress(port));
+			return channel.socket();
+		}
+		return new ServerSocket(port);
 	}
 }
@@ -0,0 +1,322 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handles communication between the server and one client in the non-blocking mode
+ * Unlike SketchServerCommunicator, this has no thread of its own: its SketchServerEventLoop
+ * calls read() and flush() when the socket is ready
+ */
+public class SketchServerChannel implements ClientConnection {
+	private enum State {
+		HELLO,		// waiting to see whether the client opens with HELLO
+		TEXT,		// line-based text protocol
+		BINARY		// length-prefixed frames
+	}
+
+	private SocketChannel channel;							// to talk with client
+	private SelectionKey key;								// registration with the loop's selector
+	private SketchServerEventLoop loop;						// the loop serving this channel
+	private SketchServer server;							// handling communication for
+	private volatile SketchRoom room;						// the sketch the client is drawing on, once it has said which
+	private ByteBuffer readBuffer;							// raw bytes from client
+	private byte[] line;									// current partial line from client
+	private int lineLength;									// how much of line is filled
+	private CommandDecoder decoder;							// parses complete lines in place
+	private ByteBuffer frames;								// partial binary frames from client (write mode)
+	private volatile State state;							// which protocol the client is talking
+	private boolean entering;								// waiting to get into the room; reading stops meanwhile
+	private OutboundQueue queue;							// ops not yet written to client
+	private SnapshotStream snapshot;						// how far the client is in getting the world
+	private ArrayDeque<ByteBuffer> writing;					// batch currently being written, if the socket took only part of it
+	private AtomicBoolean writeRequested;					// whether the loop already knows to flush
+	private AtomicInteger pendingBytes;						// roughly how much is queued since the last flush
+
+	public SketchServerChannel(SocketChannel channel, SketchServerEventLoop loop, SketchServer server) {
+		this.channel = channel;
+		this.loop = loop;
+		this.server = server;
+		readBuffer = ByteBuffer.allocate(8192);
+		readBuffer.flip();		// nothing read yet
+		line = new byte[1024];
+		decoder = new CommandDecoder();
+		frames = ByteBuffer.allocate(8192);
+		state = State.HELLO;
+		queue = server.newOutboundQueue();
+		snapshot = new SnapshotStream();
+		writing = new ArrayDeque<>();
+		writeRequested = new AtomicBoolean();
+		pendingBytes = new AtomicInteger();
+	}
+
+	public void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * Called on the loop once registered: gives the client a moment to say HELLO
+	 */
+	public void start() {
+		System.out.println("someone connected");
+		loop.schedule(this::helloTimedOut, server.getHelloTimeout() * 1000000L);
+	}
+
+	/**
+	 * No HELLO in time: this is an old editor, so talk text to it
+	 * Once part of a first line has arrived, that line decides instead, however slowly the rest comes
+	 */
+	private void helloTimedOut() {
+		if (state != State.HELLO || lineLength > 0 || !key.isValid()) return;
+		state = State.TEXT;
+		enter(SketchServer.DEFAULT_ROOM, null);
+	}
+
+	/**
+	 * Handles the client's first line: either a HELLO to answer, or an old editor's first edit
+	 */
+	private void handleFirstLine(String msg) {
+		if (Handshake.is("HELLO", msg)) {
+			Map<String, String> hello = Handshake.parse(msg);
+			Map<String, String> agreed = server.negotiate(hello);
+			state = "binary".equals(agreed.get("proto")) ? State.BINARY : State.TEXT;
+			snapshot.setSync("true".equals(agreed.get("sync")));
+			if (snapshot.isSync()) snapshot.setResume(hello.get("resume"));
+			Bounds view = Bounds.parse(agreed.get("view"));
+			snapshot.setView(view);
+			snapshot.setShown(view);
+			// ahead of anything queued, and always in text
+			writing.add(ByteBuffer.wrap((Handshake.welcome(agreed) + "\n").getBytes(StandardCharsets.UTF_8)));
+			requestWrite();
+			enter(agreed.get("room"), null);
+		}
+		else {
+			state = State.TEXT;
+			enter(SketchServer.DEFAULT_ROOM, msg);
+		}
+	}
+
+	/**
+	 * Enters the room off the loop, as that may mean loading its sketch, which would hold up every client
+	 * on the loop; stops reading from the client until in, then carries on from where it stopped
+	 * @param edit an old editor's first line, to hand the room once in, or null
+	 */
+	private void enter(String name, String edit) {
+		entering = true;
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		server.enterRoomLater(name).whenComplete((entered, e) -> loop.execute(() -> {
+			if (e != null) {
+				System.err.println("couldn't enter room " + name + ": " + e);
+				close();
+				return;
+			}
+			if (!key.isValid()) {
+				// hung up on meanwhile, so never joined
+				entered.leave();
+				return;
+			}
+			try {
+				room = entered;
+				entering = false;
+				room.join(this, snapshot);
+				if (edit != null) room.handleEdit(this, edit);
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+				if (readBuffer.hasRemaining()) handleInput();		// rest of what was read with the first line
+			}
+			catch (RuntimeException ex) {
+				// e.g. a malformed command read after the first line
+				ex.printStackTrace();
+				close();
+			}
+		}));
+	}
+
+	/**
+	 * Queues a message for the client; may be called from any thread
+	 * Hangs up if the slow-consumer policy says so; skips edits the client's snapshot will include
+	 * With a batch window the socket is only flushed once the window has passed
+	 * or the byte budget has been queued, so many ops go out in one write
+	 */
+	public void send(Op op) {
+		if (snapshot.covers(op)) return;
+		if (!queue.offer(op)) {
+			close();
+			return;
+		}
+		long window = server.getBatchWindowNanos();
+		int budget = server.getBatchBytes();
+		int size = state == State.BINARY ? op.toBinary().length : op.toString().length() + 1;
+		int before = pendingBytes.getAndAdd(size);
+		boolean first = writeRequested.compareAndSet(false, true);
+		if (first && window > 0) loop.schedule(this::requestWrite, window);
+		else if (first || (before < budget && before + size >= budget)) loop.execute(this::requestWrite);
+	}
+
+	/**
+	 * Asks the selector to tell us when the socket can take more output
+	 */
+	private void requestWrite() {
+		if (key.isValid()) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+	}
+
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public SnapshotStream getSnapshot() {
+		return snapshot;
+	}
+
+	public String getName() {
+		return String.valueOf(channel.socket().getRemoteSocketAddress());
+	}
+
+	/**
+	 * Reads what is available, splits it into lines (or frames) and hands each complete one to the server
+	 */
+	public void read() {
+		if (entering) return;		// what was read before is still being handled
+		try {
+			readBuffer.clear();
+			int n = channel.read(readBuffer);
+			if (n < 0) {
+				close();
+				return;
+			}
+			readBuffer.flip();
+			handleInput();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			close();
+		}
+	}
+
+	/**
+	 * Splits what is left in the read buffer into lines (or frames) and hands each complete one to the server,
+	 * stopping after the first line if that means waiting to get into a room
+	 */
+	private void handleInput() {
+		while (readBuffer.hasRemaining()) {
+			if (state == State.BINARY) {
+				readFrames();
+				break;
+			}
+			byte b = readBuffer.get();
+			if (b == '\n') {
+				int end = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+				lineLength = 0;
+				decoder.reset(line, 0, end);
+				if (server.isVerbose()) System.out.println("received: " + decoder.lineString());
+				if (state == State.HELLO) {
+					handleFirstLine(decoder.lineString());
+					if (entering) return;
+				}
+				else {
+					Op edit = Op.decode(decoder);
+					if (edit != null) room.handleEdit(this, edit);
+				}
+			}
+			else {
+				if (lineLength == line.length) line = Arrays.copyOf(line, line.length * 2);
+				line[lineLength++] = b;
+			}
+		}
+	}
+
+	/**
+	 * Adds the rest of the read buffer to the partial frames and hands each complete frame to the server
+	 * Hangs up on a length out of range, rather than waiting for (or buffering) a frame that long
+	 */
+	private void readFrames() {
+		if (frames.remaining() < readBuffer.remaining()) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(frames.capacity() * 2, frames.position() + readBuffer.remaining()));
+			frames.flip();
+			bigger.put(frames);
+			frames = bigger;
+		}
+		frames.put(readBuffer);
+		frames.flip();
+		while (frames.remaining() >= 4) {
+			int length = frames.getInt(frames.position());
+			if (length < 1 || length > BinaryProtocol.MAX_FRAME) {
+				System.err.println("bad frame length " + length + " from " + getName());
+				close();
+				return;
+			}
+			if (frames.remaining() < 4 + length) break;
+			frames.position(frames.position() + 4);
+			ByteBuffer frame = frames.slice();
+			frame.limit(length);
+			frames.position(frames.position() + length);
+			Op edit = BinaryProtocol.decode(frame);
+			if (edit != null) room.handleEdit(this, edit);
+		}
+		frames.compact();
+	}
+
+	/**
+	 * Writes as much of the pending output as the socket takes without blocking
+	 * Queued ops are gathered into batches of up to the byte budget, each written with one call
+	 * Taking a snapshot chunk queues the next, so the world is only generated as fast as the socket takes it
+	 */
+	public void flush() {
+		try {
+			writeRequested.set(false);
+			pendingBytes.set(0);
+			int budget = server.getBatchBytes();
+			while (true) {
+				if (writing.isEmpty()) {
+					int bytes = 0;
+					Op op;
+					while (bytes < budget && (op = queue.poll()) != null) {
+						if (op == OutboundQueue.RESYNC) op = room.resyncSnapshot(this, queue, snapshot);
+						else if (op == snapshot.getChunk()) room.continueSnapshot(this, snapshot);
+						ByteBuffer buf = state == State.BINARY ? ByteBuffer.wrap(op.toBinary())
+								: ByteBuffer.wrap((op.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+						bytes += buf.remaining();
+						writing.add(buf);
+					}
+					if (writing.isEmpty()) break;
+				}
+				channel.write(writing.toArray(new ByteBuffer[0]));
+				while (!writing.isEmpty() && !writing.peekFirst().hasRemaining()) writing.pollFirst();
+				if (!writing.isEmpty()) return;		// socket is full; stay interested in OP_WRITE
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			// a send may have slipped in after the queue looked empty
+			if (queue.size() > 0) key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			close();
+		}
+	}
+
+	/**
+	 * Clean up -- note that also remove self from server's list so it doesn't broadcast here
+	 * Called from another thread (e.g. the room's fan-out), this only hands the close to the loop, as telling
+	 * the room may wait on that same thread
+	 */
+	public void close() {
+		if (Thread.currentThread() != loop) {
+			loop.execute(this::close);
+			return;
+		}
+		if (room != null) room.removeCommunicator(this);
+		queue.close();
+		key.cancel();
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -1,64 +1,225 @@
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles communication between the server and one client, for SketchServer
+ * Reading happens on this communicator's own thread; writing happens on a second thread that
+ * drains the client's outbound queue, so a slow client only ever holds itself up
  *
  * @author Shaamil and Nicolas
  */
-public class SketchServerCommunicator extends Thread {
+public class SketchServerCommunicator implements Runnable, ClientConnection {
 	private Socket sock;					// to talk with client
-	private BufferedReader in;				// from client
-	private PrintWriter out;				// to client
+	private InputStream in;					// from client
+	private OutputStream rawOut;			// to client, buffered, for binary frames
+	private PrintWriter out;				// to client, for text lines
+	private boolean binary;					// whether the client negotiated the binary protocol
 	private SketchServer server;			// handling communication for
+	private SketchRoom room;				// the sketch the client is drawing on, once it has said which
+	private OutboundQueue queue;			// ops waiting to be written to client
+	private SnapshotStream snapshot;		// how far the client is in getting the world
 
 	public SketchServerCommunicator(Socket sock, SketchServer server) {
 		this.sock = sock;
 		this.server = server;
+		queue = server.newOutboundQueue();
+		snapshot = new SnapshotStream();
 	}
 
 	/**
-	 * Sends a message to the client
-	 * @param msg
+	 * Queues a message for the client; hangs up if the slow-consumer policy says so
+	 * Edits to shapes the client's snapshot hasn't reached yet are skipped, as that snapshot will include them
+	 * @param op
 	 */
-	public void send(String msg) {
-		out.println(msg);
+	public void send(Op op) {
+		if (snapshot.covers(op)) return;
+		if (!queue.offer(op)) close();
 	}
-	
+
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	public SnapshotStream getSnapshot() {
+		return snapshot;
+	}
+
+	public String getName() {
+		return String.valueOf(sock.getRemoteSocketAddress());
+	}
+
+	/**
+	 * Closes the socket, which also ends the reading thread
+	 */
+	public void close() {
+		queue.close();
+		try {
+			sock.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * Keeps listening for and handling (your code) messages from the client
 	 */
 	public void run() {
 		try {
 			System.out.println("someone connected");
-			
+
 			// Communication channel
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-			out = new PrintWriter(sock.getOutputStream(), true);
+			in = new BufferedInputStream(sock.getInputStream());
+			// no autoflush: the writer thread flushes once per batch rather than once per op
+			rawOut = new BufferedOutputStream(sock.getOutputStream(), server.getBatchBytes());
+			out = new PrintWriter(new OutputStreamWriter(rawOut), false);
 
-			// Tell the client the current state of the world
-			String worldDescription = server.getWorldDescription();
-			out.println(worldDescription);
+			// A new editor says HELLO first; an old one says nothing, or goes straight to an edit
+			String first = readFirstLine(server.getHelloTimeout());
+			String roomName = SketchServer.DEFAULT_ROOM;
+			if (Handshake.is("HELLO", first)) {
+				Map<String, String> hello = Handshake.parse(first);
+				Map<String, String> agreed = server.negotiate(hello);
+				binary = "binary".equals(agreed.get("proto"));
+				roomName = agreed.get("room");
+				snapshot.setSync("true".equals(agreed.get("sync")));
+				if (snapshot.isSync()) snapshot.setResume(hello.get("resume"));
+				Bounds view = Bounds.parse(agreed.get("view"));
+				snapshot.setView(view);
+				snapshot.setShown(view);
+				out.println(Handshake.welcome(agreed));
+				out.flush();
+				first = null;
+			}
+			room = server.enterRoom(roomName);
 
+			// Stream the client the current state of the world, and from then on every edit
+			room.join(this, snapshot);
+			Threads.start(this::writeQueued, "sketch-writer", server.isVirtualThreads());
 
 			// Keep getting and handling messages from the client
-
-			String line;
-			while ((line = in.readLine()) != null) {
-				System.out.println("received: " + line);
-				// delegates command handling to the server class
-				// this method is synchronized, so data is kept with a single source of truth
-				server.handleEdit(line);
+			if (binary) {
+				BinaryProtocol.Reader reader = new BinaryProtocol.Reader(in);
+				while (true) {
+					Op edit;
+					try {
+						edit = reader.read();
+					}
+					catch (EOFException e) {
+						break;
+					}
+					// delegates command handling to the client's room, whose sequencer alone changes its sketch,
+					// so data is kept with a single source of truth
+					if (edit != null) room.handleEdit(this, edit);
+				}
+			}
+			else {
+				if (first != null) {
+					if (server.isVerbose()) System.out.println("received: " + first);
+					room.handleEdit(this, first);
+				}
+				// decodes each line in place, without making Strings out of it
+				CommandDecoder decoder = new CommandDecoder(in);
+				while (decoder.nextLine()) {
+					if (server.isVerbose()) System.out.println("received: " + decoder.lineString());
+					Op edit = Op.decode(decoder);
+					if (edit != null) room.handleEdit(this, edit);
+				}
 			}
-
-			// Clean up -- note that also remove self from server's list so it doesn't broadcast here
-			server.removeCommunicator(this);
-			out.close();
-			in.close();
-			sock.close();
 		}
 		catch (IOException e) {
+			// the socket was closed under us, e.g. by the slow-consumer policy
+			if (!sock.isClosed()) e.printStackTrace();
+		}
+		catch (RuntimeException e) {
+			// e.g. a malformed command: hang up on this client only
+			System.err.println("dropping " + getName() + " after " + e);
 			e.printStackTrace();
 		}
+		finally {
+			// Clean up -- note that also remove self from server's list so it doesn't broadcast here
+			if (room != null) room.removeCommunicator(this);
+			close();
+		}
+	}
+
+	/**
+	 * Reads the client's first line, giving up if it hasn't started one within the timeout
+	 * Reads from the buffered byte stream rather than through a Reader, so whatever follows the line
+	 * is still there for the binary decoder if the protocol changes after it
+	 * @return the line, or null if the client said nothing in time (or hung up)
+	 */
+	private String readFirstLine(int timeout) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		sock.setSoTimeout(timeout);
+		try {
+			int b;
+			while ((b = in.read()) != -1 && b != '\n') {
+				line.write(b);
+				sock.setSoTimeout(0);		// it has started talking; wait for the rest of the line
+			}
+			if (b == -1 && line.size() == 0) return null;
+		}
+		catch (SocketTimeoutException e) {
+			return null;
+		}
+		finally {
+			sock.setSoTimeout(0);
+		}
+		String first = line.toString(StandardCharsets.UTF_8);
+		return first.endsWith("\r") ? first.substring(0, first.length() - 1) : first;
+	}
+
+	/**
+	 * Writer thread: writes queued ops to the client until the queue is closed
+	 * Everything queued is written with a single flush; with a batch window, the writer also keeps
+	 * collecting ops for up to that long (or until the byte budget is reached) before flushing
+	 * Taking a snapshot chunk asks the server for the next one, so a joining client's world
+	 * is generated as fast as the socket takes it
+	 */
+	private void writeQueued() {
+		List<Op> batch = new ArrayList<>();
+		long window = server.getBatchWindowNanos();
+		int budget = server.getBatchBytes();
+		try {
+			while (queue.drainTo(batch)) {
+				long deadline = System.nanoTime() + window;
+				int bytes = 0;
+				int written = 0;
+				while (true) {
+					for (; written < batch.size(); written++) {
+						Op op = batch.get(written);
+						if (op == OutboundQueue.RESYNC) op = room.resyncSnapshot(this, queue, snapshot);
+						else if (op == snapshot.getChunk()) room.continueSnapshot(this, snapshot);
+						if (binary) {
+							byte[] frame = op.toBinary();
+							rawOut.write(frame);
+							bytes += frame.length;
+						}
+						else {
+							String msg = op.toString();
+							out.println(msg);
+							bytes += msg.length() + 1;
+						}
+					}
+					long remaining = deadline - System.nanoTime();
+					if (bytes >= budget || remaining <= 0) break;
+					if (queue.drainTo(batch, remaining, TimeUnit.NANOSECONDS) < 0) return;
+				}
+				if (binary) rawOut.flush();
+				else out.flush();
+				batch.clear();
+			}
+		}
+		catch (InterruptedException | IOException e) {
+			// just stop writing
+		}
+		close();
 	}
 }
@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread of the non-blocking SketchServer mode
+ * A small fixed pool of these serves every client: the first loop also accepts connections
+ * and hands them out round-robin, and each loop does the reads, line framing and writes
+ * for the channels registered with it
+ */
+public class SketchServerEventLoop extends Thread {
+	private Selector selector;									// readiness of all our channels
+	private ConcurrentLinkedQueue<Runnable> tasks;				// work handed over from other threads
+	private PriorityQueue<Timer> timers;						// delayed work, soonest first (loop thread only)
+	private SketchServer server;								// feeding edits to
+
+	public SketchServerEventLoop(SketchServer server, int index) throws IOException {
+		super("sketch-loop-" + index);
+		this.server = server;
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<>();
+		timers = new PriorityQueue<>();
+	}
+
+	/**
+	 * A task to run on the loop once its deadline has passed
+	 */
+	private static class Timer implements Comparable<Timer> {
+		long deadline;		// System.nanoTime() to run at
+		Runnable task;
+
+		Timer(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		public int compareTo(Timer other) {
+			return Long.compare(deadline, other.deadline);
+		}
+	}
+
+	/**
+	 * Makes this loop the one accepting new connections
+	 */
+	public void listen(ServerSocketChannel listen) {
+		execute(() -> {
+			try {
+				listen.configureBlocking(false);
+				listen.register(selector, SelectionKey.OP_ACCEPT);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * Takes over a freshly accepted client
+	 */
+	public void register(SocketChannel channel) {
+		execute(() -> {
+			try {
+				channel.configureBlocking(false);
+				SketchServerChannel conn = new SketchServerChannel(channel, this, server);
+				conn.setKey(channel.register(selector, SelectionKey.OP_READ, conn));
+				conn.start();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * Runs the task on this loop's thread, as soon as it wakes up
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs the task on this loop's thread after the delay; may be called from any thread
+	 */
+	public void schedule(Runnable task, long delayNanos) {
+		long deadline = System.nanoTime() + delayNanos;
+		execute(() -> timers.add(new Timer(deadline, task)));
+	}
+
+	/**
+	 * Waits for channels to become ready and services them, forever
+	 */
+	public void run() {
+		while (true) {
+			try {
+				Timer next = timers.peek();
+				if (next == null) {
+					selector.select();
+				}
+				else {
+					long millis = (next.deadline - System.nanoTime() + 999999) / 1000000;	// round up, so we don't spin
+					if (millis > 0) selector.select(millis);
+					else selector.selectNow();
+				}
+				Runnable task;
+				while ((task = tasks.poll()) != null) task.run();
+				long now = System.nanoTime();
+				while ((next = timers.peek()) != null && next.deadline - now <= 0) {
+					timers.poll().task.run();
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) continue;
+					if (key.isAcceptable()) {
+						SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+						if (channel != null) server.nextEventLoop().register(channel);
+						continue;
+					}
+					SketchServerChannel conn = (SketchServerChannel) key.attachment();
+					try {
+						if (key.isReadable()) conn.read();
+						if (key.isValid() && key.isWritable()) conn.flush();
+					}
+					catch (RuntimeException e) {
+						// e.g. a malformed command: hang up on that client only, not on everyone this loop serves
+						System.err.println("dropping " + conn.getName() + " after " + e);
+						e.printStackTrace();
+						conn.close();
+					}
+				}
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
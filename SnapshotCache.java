@@ -0,0 +1,51 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Snapshot chunks already encoded at the sketch's current version, shared by every client joining at that version
+ * A chunk is keyed by the ID it starts after; while the version holds, the shapes it covers are unchanged,
+ * so a meeting full of editors joining at once costs one encoding of the sketch instead of one each
+ * Any edit moves the version on, and the next lookup throws the old chunks away
+ * Only used on the room's sequencer, which alone changes the sketch
+ */
+public class SnapshotCache {
+	/**
+	 * One encoded chunk: a BATCH of ADDs for the shapes after some ID up to upTo
+	 */
+	public static class Chunk {
+		final Op op;
+		final int upTo;
+
+		Chunk(Op op, int upTo) {
+			this.op = op;
+			this.upTo = upTo;
+		}
+	}
+
+	private long version = -1;				// sketch version the chunks were encoded at
+	private Map<Integer, Chunk> chunks;		// by the ID each starts after
+
+	public SnapshotCache() {
+		chunks = new HashMap<>();
+	}
+
+	/**
+	 * @return the chunk starting after the ID, if one was encoded at this version, else null
+	 */
+	public Chunk get(long version, int after) {
+		if (version != this.version) {
+			chunks.clear();
+			this.version = version;
+		}
+		return chunks.get(after);
+	}
+
+	/**
+	 * Keeps a chunk just encoded at the version (the one last passed to get)
+	 */
+	public Chunk put(int after, Op op, int upTo) {
+		Chunk chunk = new Chunk(op, upTo);
+		chunks.put(after, chunk);
+		return chunk;
+	}
+}
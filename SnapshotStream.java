@@ -0,0 +1,164 @@
+/**
+ * Where one client is in the copy of the world it is being sent, a chunk at a time
+ * The snapshot covers every shape up to the last ID when it started; each chunk is encoded with
+ * the room's sequencer just before it is queued, so it already reflects every edit sequenced before it,
+ * and edits to shapes not yet reached are left out of the client's queue (their chunk will carry them)
+ * The sequencer reads where it has got to when encoding the next chunk; the client's fan-out stage moves it on,
+ * in sequence order with the edits it queues; the client's writer checks getChunk
+ * A client that asked for SYNC markers gets one once its snapshot is done, and may have asked to resume
+ * from an earlier connection's last SYNC instead of getting a snapshot at all
+ * A client may look at only part of the board, and is then only sent the shapes there: its snapshot leaves
+ * the rest out, and a shape moving into or out of view is sent as an ADD or LEAVE (see inView)
+ */
+public class SnapshotStream {
+	private int after;				// highest ID already queued to the client
+	private int last;				// highest ID the snapshot covers
+	private volatile boolean active;	// still chunks to send
+	private volatile Op chunk;		// the latest chunk queued, so the writer knows when to ask for the next
+	private int shard;				// which fan-out stage serves the client
+	private boolean sync;			// whether the client takes SYNC markers
+	private int resumeEpoch;		// the room run the client's last SYNC was from
+	private long resumeSeq = -1;	// and its sequence number, or -1 if the client has nothing to resume
+	private Bounds view;			// what the client is looking at, as of the edits sequenced so far (sequencer only; null = everything)
+	private Bounds shown;			// the same, as of the edits queued to the client so far (fan-out only)
+
+	/**
+	 * (Re)starts the snapshot from the first shape
+	 * @param last highest ID in the sketch right now
+	 */
+	public void start(int last) {
+		this.after = 0;
+		this.last = last;
+		active = true;
+		chunk = null;
+	}
+
+	/**
+	 * Records that a chunk with the shapes up to and including upTo has been queued
+	 */
+	public void queued(Op chunk, int upTo) {
+		this.chunk = chunk;
+		after = upTo;
+		if (after >= last) active = false;
+	}
+
+	public void finish() {
+		active = false;
+		chunk = null;
+	}
+
+	public boolean isActive() {
+		return active;
+	}
+
+	public int getAfter() {
+		return after;
+	}
+
+	public int getLast() {
+		return last;
+	}
+
+	/**
+	 * @return the latest chunk queued, while more are to come
+	 */
+	public Op getChunk() {
+		return active ? chunk : null;
+	}
+
+	public int getShard() {
+		return shard;
+	}
+
+	public void setShard(int shard) {
+		this.shard = shard;
+	}
+
+	public boolean isSync() {
+		return sync;
+	}
+
+	public void setSync(boolean sync) {
+		this.sync = sync;
+	}
+
+	/**
+	 * Records where the client wants to carry on from, from its HELLO's resume=epoch.seq
+	 * @param resume the parameter, or null if there was none; anything malformed is ignored
+	 */
+	public void setResume(String resume) {
+		if (resume == null) return;
+		int dot = resume.indexOf('.');
+		try {
+			resumeEpoch = Integer.parseInt(resume.substring(0, dot));
+			resumeSeq = Long.parseLong(resume.substring(dot + 1));
+		}
+		catch (NumberFormatException | IndexOutOfBoundsException e) {
+			resumeSeq = -1;
+		}
+	}
+
+	public Bounds getView() {
+		return view;
+	}
+
+	public void setView(Bounds view) {
+		this.view = view;
+	}
+
+	public Bounds getShown() {
+		return shown;
+	}
+
+	public void setShown(Bounds shown) {
+		this.shown = shown;
+	}
+
+	/**
+	 * What a client looking at part of the board is to be sent of an edit, given the shape before and after it:
+	 * nothing if the shape was out of view and still is, and the edit itself if it stays in view (or an ADD or
+	 * DELETE comes into or goes out of it); a MOVE into view becomes an ADD of the moved shape, and one out of
+	 * view a LEAVE, so the client only ever holds the shapes it can see
+	 * @param before the shape before the edit, or null for an ADD
+	 * @param after the shape after it, or null for a DELETE
+	 * @param view what the client is looking at, or null for everything
+	 * @return the op to send, or null for none
+	 */
+	public static Op inView(Op op, Shape before, Shape after, Bounds view) {
+		if (view == null) return op;
+		boolean was = before != null && before.getBounds().intersects(view);
+		boolean is = after != null && after.getBounds().intersects(view);
+		if (was == is) return was ? op : null;
+		if (op.getType() != Op.Type.MOVE) return op;
+		return is ? Op.add(op.getId(), after) : Op.leave(op.getId());
+	}
+
+	public int getResumeEpoch() {
+		return resumeEpoch;
+	}
+
+	/**
+	 * @return the sequence number the client has everything up to, or -1 if it isn't resuming
+	 */
+	public long getResumeSeq() {
+		return resumeSeq;
+	}
+
+	/**
+	 * @return whether the op is about a shape a later chunk will send, and so should not be queued,
+	 * or is a SYNC the client doesn't take or can't use yet
+	 */
+	public boolean covers(Op op) {
+		if (op.getType() == Op.Type.SYNC) return !sync || active;
+		if (!active) return false;
+		switch (op.getType()) {
+			case ADD:			// a shape the snapshot has yet to reach coming into view
+			case MOVE:
+			case RECOLOR:
+			case DELETE:
+			case LEAVE:
+				return op.getId() > after && op.getId() <= last;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,136 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds the shapes near a box on the board without looking at every shape: a uniform grid of square cells,
+ * each listing the IDs of the shapes whose bounds reach into it
+ * Only cells with something in them are kept, so the board can be as large as ints allow
+ * A shape spanning more than LARGE cells is kept on one list instead, rather than in every cell it covers
+ * Not thread-safe: a sketch's index is only used by the one thread that changes the sketch
+ */
+public class SpatialIndex {
+	public static final int CELL = 256;			// cell size, in pixels
+	private static final int LARGE = 64;		// cells a shape may cover before it goes on the large list
+
+	/**
+	 * The IDs in one cell, in no particular order
+	 */
+	private static class Cell {
+		int[] ids = new int[4];
+		int size;
+
+		void add(int id) {
+			if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+			ids[size++] = id;
+		}
+
+		void remove(int id) {
+			for (int i = 0; i < size; i++) {
+				if (ids[i] == id) {
+					ids[i] = ids[--size];
+					return;
+				}
+			}
+		}
+	}
+
+	private Map<Long, Cell> cells = new HashMap<>();	// by key(column, row)
+	private Cell large = new Cell();					// shapes too big for the cells
+	private int size;									// shapes indexed
+
+	private static long key(int column, int row) {
+		return ((long) column << 32) | (row & 0xffffffffL);
+	}
+
+	private static int cellOf(int coordinate) {
+		return Math.floorDiv(coordinate, CELL);
+	}
+
+	private static boolean isLarge(Bounds b) {
+		return ((long) cellOf(b.x2) - cellOf(b.x1) + 1) * ((long) cellOf(b.y2) - cellOf(b.y1) + 1) > LARGE;
+	}
+
+	/**
+	 * Indexes a shape, by its bounds
+	 */
+	public void add(int id, Bounds b) {
+		size++;
+		if (isLarge(b)) {
+			large.add(id);
+			return;
+		}
+		for (int column = cellOf(b.x1); column <= cellOf(b.x2); column++) {
+			for (int row = cellOf(b.y1); row <= cellOf(b.y2); row++) {
+				cells.computeIfAbsent(key(column, row), k -> new Cell()).add(id);
+			}
+		}
+	}
+
+	/**
+	 * Unindexes a shape, which must have been added with the same bounds
+	 */
+	public void remove(int id, Bounds b) {
+		size--;
+		if (isLarge(b)) {
+			large.remove(id);
+			return;
+		}
+		for (int column = cellOf(b.x1); column <= cellOf(b.x2); column++) {
+			for (int row = cellOf(b.y1); row <= cellOf(b.y2); row++) {
+				Long key = key(column, row);
+				Cell cell = cells.get(key);
+				if (cell == null) continue;
+				cell.remove(id);
+				if (cell.size == 0) cells.remove(key);
+			}
+		}
+	}
+
+	public void clear() {
+		cells.clear();
+		large = new Cell();
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Finds the shapes that may reach into a box: every one that does, and some near it that don't
+	 * (the caller checks each against its bounds)
+	 * @return their IDs, in ascending order, each once
+	 */
+	public int[] query(Bounds area) {
+		Cell found = new Cell();
+		for (int i = 0; i < large.size; i++) found.add(large.ids[i]);
+		int left = cellOf(area.x1), right = cellOf(area.x2), top = cellOf(area.y1), bottom = cellOf(area.y2);
+		if (((long) right - left + 1) * ((long) bottom - top + 1) > cells.size()) {
+			// a box over more cells than have anything in them: quicker to go through the ones that do
+			for (Map.Entry<Long, Cell> entry : cells.entrySet()) {
+				long key = entry.getKey();
+				int column = (int) (key >> 32), row = (int) key;
+				if (column < left || column > right || row < top || row > bottom) continue;
+				Cell cell = entry.getValue();
+				for (int i = 0; i < cell.size; i++) found.add(cell.ids[i]);
+			}
+		}
+		else {
+			for (int column = left; column <= right; column++) {
+				for (int row = top; row <= bottom; row++) {
+					Cell cell = cells.get(key(column, row));
+					if (cell == null) continue;
+					for (int i = 0; i < cell.size; i++) found.add(cell.ids[i]);
+				}
+			}
+		}
+		int[] ids = found.ids;
+		Arrays.sort(ids, 0, found.size);
+		int unique = 0;
+		for (int i = 0; i < found.size; i++) {
+			if (unique == 0 || ids[unique - 1] != ids[i]) ids[unique++] = ids[i];
+		}
+		return Arrays.copyOf(ids, unique);
+	}
+}
@@ -0,0 +1,59 @@
+import java.lang.reflect.Method;
+
+/**
+ * Starts the long-lived blocking threads (one per connection) either as ordinary platform threads
+ * or as virtual threads, so a blocking readLine() per client stays cheap with thousands of clients
+ * Virtual threads are looked up reflectively, so this still builds and runs (with platform threads)
+ * on JDKs older than 21
+ */
+public class Threads {
+	private static Method ofVirtual;		// Thread.ofVirtual(), or null if this JDK doesn't have it
+	private static Method unstarted;		// Thread.Builder.unstarted(Runnable)
+	private static boolean warned;			// only complain once about the fallback
+
+	static {
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+		}
+		catch (ReflectiveOperationException e) {
+			ofVirtual = null;
+		}
+	}
+
+	/**
+	 * @return whether this JDK can start virtual threads
+	 */
+	public static boolean virtualAvailable() {
+		return ofVirtual != null;
+	}
+
+	/**
+	 * Creates and starts a thread running the task
+	 * @param task what the thread runs
+	 * @param name thread name, for stack dumps
+	 * @param virtual whether to use a virtual thread (falls back to a daemon platform thread when unavailable)
+	 */
+	public static Thread start(Runnable task, String name, boolean virtual) {
+		Thread thread = null;
+		if (virtual && ofVirtual != null) {
+			try {
+				thread = (Thread) unstarted.invoke(ofVirtual.invoke(null), task);
+			}
+			catch (ReflectiveOperationException e) {
+				thread = null;
+			}
+		}
+		else if (virtual && !warned) {
+			warned = true;
+			System.err.println("virtual threads need JDK 21+, using platform threads");
+		}
+		if (thread == null) {
+			thread = new Thread(task);
+			thread.setDaemon(true);
+		}
+		thread.setName(name);
+		thread.start();
+		return thread;
+	}
+}
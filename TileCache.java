@@ -0,0 +1,232 @@
+import java.awt.AlphaComposite;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import javax.swing.SwingUtilities;
+
+/**
+ * The editor's sketch drawn once into square images covering the board, so painting is mostly copying images
+ * A tile is only drawn again once something on it has changed (see invalidate), so the cost of a paint goes
+ * with how many tiles changed since the last, not how many shapes there are
+ * Tiles are kept by where they are on the board, so panning back and forth reuses them; those that go out of
+ * view are thrown away (see retain)
+ * Only used on the Swing thread, which is the one that changes the editor's sketch, but tiles are drawn in
+ * parallel on the fork-join pool, each into an image of its own; the Swing thread never waits for them, and
+ * only ever copies images: meanwhile it paints what the tiles showed before (or nothing, for new ones), and
+ * swaps each tile's new image in once it is drawn, asking for that part of the board to be painted again
+ */
+public class TileCache {
+	public static final int TILE = 256;			// tile size, in pixels
+
+	/**
+	 * One tile's image, and whether it still shows the sketch as it is
+	 */
+	private static class Tile {
+		BufferedImage image = newImage();	// what is painted
+		BufferedImage spare;				// the image it last showed, to draw the next into, if not being drawn into
+		boolean valid;
+		boolean drawing;					// a new image is being drawn
+		int version;						// changes each time the tile is invalidated
+	}
+
+	/**
+	 * A tile to draw, with the shapes on it, worked out on the Swing thread (the sketch's index is only for that thread)
+	 * The shapes never change once in the sketch, so any thread may draw them
+	 */
+	private static class Pending {
+		final Tile tile;
+		final int x, y;				// the tile's upper left corner on the board
+		final Shape[] shapes;		// in ID order
+		final BufferedImage image;	// to draw them into
+		final int version;			// the tile's, as of the shapes
+
+		Pending(Tile tile, int x, int y, Shape[] shapes) {
+			this.tile = tile;
+			this.x = x;
+			this.y = y;
+			this.shapes = shapes;
+			image = tile.spare != null ? tile.spare : newImage();
+			version = tile.version;
+		}
+	}
+
+	/**
+	 * Draws a run of pending tiles, splitting it in two until each task has one, and hands each back to the
+	 * Swing thread as soon as it is drawn
+	 */
+	private class DrawTiles extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<Pending> pending;
+		private final int from, to;
+
+		DrawTiles(List<Pending> pending, int from, int to) {
+			this.pending = pending;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				Pending drawn = pending.get(from);
+				draw(drawn);
+				SwingUtilities.invokeLater(() -> swapIn(drawn));
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new DrawTiles(pending, from, mid), new DrawTiles(pending, mid, to));
+		}
+	}
+
+	private Map<Long, Tile> tiles = new HashMap<>();	// by key(column, row)
+	private Consumer<Bounds> repaint;					// asks for an area of the board to be painted again
+
+	/**
+	 * @param repaint called on the Swing thread with the area of each tile drawn, to have it painted again
+	 */
+	public TileCache(Consumer<Bounds> repaint) {
+		this.repaint = repaint;
+	}
+
+	private static BufferedImage newImage() {
+		return new BufferedImage(TILE, TILE, BufferedImage.TYPE_INT_ARGB_PRE);
+	}
+
+	private static long key(int column, int row) {
+		return ((long) column << 32) | (row & 0xffffffffL);
+	}
+
+	private static int tileOf(int coordinate) {
+		return Math.floorDiv(coordinate, TILE);
+	}
+
+	/**
+	 * Marks the tiles an area of the board touches as needing to be drawn again
+	 */
+	public void invalidate(Bounds area) {
+		for (int column = tileOf(area.x1); column <= tileOf(area.x2); column++) {
+			for (int row = tileOf(area.y1); row <= tileOf(area.y2); row++) {
+				Tile tile = tiles.get(key(column, row));
+				if (tile != null) {
+					tile.valid = false;
+					tile.version++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Marks every tile as needing to be drawn again, e.g. once the sketch is cleared
+	 */
+	public void invalidateAll() {
+		for (Tile tile : tiles.values()) {
+			tile.valid = false;
+			tile.version++;
+		}
+	}
+
+	/**
+	 * @return whether the tiles an area of the board touches (of those kept) all show the sketch as it is now,
+	 * e.g. for a shape drawn live until they do
+	 */
+	public boolean isDrawn(Bounds area) {
+		for (int column = tileOf(area.x1); column <= tileOf(area.x2); column++) {
+			for (int row = tileOf(area.y1); row <= tileOf(area.y2); row++) {
+				Tile tile = tiles.get(key(column, row));
+				if (tile != null && !tile.valid) return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Throws away the tiles outside an area (the view), so only about a screenful is ever kept
+	 */
+	public void retain(Bounds area) {
+		Iterator<Map.Entry<Long, Tile>> entries = tiles.entrySet().iterator();
+		while (entries.hasNext()) {
+			long key = entries.next().getKey();
+			int column = (int) (key >> 32), row = (int) key;
+			if (column < tileOf(area.x1) || column > tileOf(area.x2) || row < tileOf(area.y1) || row > tileOf(area.y2)) {
+				entries.remove();
+			}
+		}
+	}
+
+	/**
+	 * Paints an area of the board from the tiles covering it, as they are; any that aren't valid are drawn
+	 * again on the fork-join pool, and painted once done (see swapIn)
+	 * @param g graphics in board coordinates
+	 * @param skip ID of a shape to leave out of the tiles, as it is drawn live on top (e.g. being dragged), or -1
+	 */
+	public void paint(Graphics g, Bounds area, Sketch sketch, int skip) {
+		List<Pending> pending = new ArrayList<>();
+		for (int column = tileOf(area.x1); column <= tileOf(area.x2); column++) {
+			for (int row = tileOf(area.y1); row <= tileOf(area.y2); row++) {
+				Tile tile = tiles.computeIfAbsent(key(column, row), k -> new Tile());
+				if (!tile.valid && !tile.drawing) {
+					pending.add(pending(tile, column * TILE, row * TILE, sketch, skip));
+					tile.spare = null;
+					tile.drawing = true;
+				}
+			}
+		}
+		if (!pending.isEmpty()) ForkJoinPool.commonPool().execute(new DrawTiles(pending, 0, pending.size()));
+
+		for (int column = tileOf(area.x1); column <= tileOf(area.x2); column++) {
+			for (int row = tileOf(area.y1); row <= tileOf(area.y2); row++) {
+				g.drawImage(tiles.get(key(column, row)).image, column * TILE, row * TILE, null);
+			}
+		}
+	}
+
+	/**
+	 * Finds the shapes on a tile, through the sketch's index
+	 */
+	private static Pending pending(Tile tile, int x, int y, Sketch sketch, int skip) {
+		int[] ids = sketch.getShapesIn(new Bounds(x, y, x + TILE - 1, y + TILE - 1));
+		Shape[] shapes = new Shape[ids.length];
+		int n = 0;
+		for (int id : ids) {
+			if (id != skip) shapes[n++] = sketch.getShapeById(id);
+		}
+		return new Pending(tile, x, y, n == shapes.length ? shapes : Arrays.copyOf(shapes, n));
+	}
+
+	/**
+	 * Puts a tile's newly drawn image in place, on the Swing thread, and has its area painted again
+	 * If the tile has changed since its shapes were found it stays invalid, and so is drawn again on that paint;
+	 * if it has gone out of view meanwhile (see retain) the image is dropped
+	 */
+	private void swapIn(Pending drawn) {
+		Tile tile = drawn.tile;
+		tile.drawing = false;
+		if (tiles.get(key(tileOf(drawn.x), tileOf(drawn.y))) != tile) return;
+		tile.spare = tile.image;
+		tile.image = drawn.image;
+		if (tile.version == drawn.version) tile.valid = true;
+		repaint.accept(new Bounds(drawn.x, drawn.y, drawn.x + TILE - 1, drawn.y + TILE - 1));
+	}
+
+	/**
+	 * Draws the shapes on a tile into the pending image, in ID order; on whichever thread is drawing it
+	 */
+	private static void draw(Pending pending) {
+		Graphics2D g = pending.image.createGraphics();
+		g.setComposite(AlphaComposite.Clear);
+		g.fillRect(0, 0, TILE, TILE);
+		g.setComposite(AlphaComposite.SrcOver);
+		g.translate(-pending.x, -pending.y);
+		for (Shape shape : pending.shapes) shape.draw(g);
+		g.dispose();
+	}
+}